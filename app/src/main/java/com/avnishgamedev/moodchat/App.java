@@ -14,6 +14,8 @@ public class App extends Application implements DefaultLifecycleObserver {
     public void onCreate() {
         super.onCreate();
         ProcessLifecycleOwner.get().getLifecycle().addObserver(this);
+        AvatarDiskCache.init(this);
+        LocalStore.init(this);
         AiHelper.getInstance();
     }
 
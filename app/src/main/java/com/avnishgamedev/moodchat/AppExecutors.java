@@ -0,0 +1,50 @@
+package com.avnishgamedev.moodchat;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared executors so background work doesn't spin up a new thread per call.
+ */
+public class AppExecutors {
+    private static final ExecutorService decode = Executors.newFixedThreadPool(2, namedThreads("moodchat-decode"));
+    private static final ExecutorService io = Executors.newFixedThreadPool(4, namedThreads("moodchat-io"));
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private static final Executor main = mainHandler::post;
+
+    private AppExecutors() {}
+
+    // CPU bound work such as bitmap decoding
+    public static ExecutorService decode() {
+        return decode;
+    }
+
+    // Disk and network work, bounded so bursts queue instead of spawning threads
+    public static ExecutorService io() {
+        return io;
+    }
+
+    public static Executor main() {
+        return main;
+    }
+
+    public static Handler mainHandler() {
+        return mainHandler;
+    }
+
+    // Helpers
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,101 @@
+package com.avnishgamedev.moodchat;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of decoded profile pictures shared by every screen and the
+ * notification service. Entries are keyed by the picture's content hash (or, for
+ * legacy inline pictures, username plus a hash of the encoded string) and the
+ * decoded size, so a changed picture never serves a stale bitmap.
+ */
+public class AvatarCache {
+    private static final String TAG = "AvatarCache";
+
+    // Upper bound for the cache, the actual size also depends on the heap class
+    private static final int MAX_CACHE_BYTES = 16 * 1024 * 1024;
+
+    private static volatile AvatarCache instance;
+
+    private final LruCache<String, Bitmap> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile EvictionListener evictionListener;
+
+    public interface EvictionListener {
+        void onEvicted(String key, Bitmap bitmap);
+    }
+
+    private AvatarCache() {
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, MAX_CACHE_BYTES);
+        cache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                EvictionListener listener = evictionListener;
+                if (evicted && listener != null) {
+                    listener.onEvicted(key, oldValue);
+                }
+            }
+        };
+    }
+
+    public static AvatarCache getInstance() {
+        if (instance == null) {
+            synchronized (AvatarCache.class) {
+                if (instance == null) {
+                    instance = new AvatarCache();
+                }
+            }
+        }
+        return instance;
+    }
+
+    public Bitmap get(String key) {
+        Bitmap bitmap = cache.get(key);
+        if (bitmap != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return bitmap;
+    }
+
+    public void put(String key, Bitmap bitmap) {
+        cache.put(key, bitmap);
+    }
+
+    public void setEvictionListener(EvictionListener listener) {
+        evictionListener = listener;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void logStats() {
+        Log.d(TAG, "hits: " + hits.get() + ", misses: " + misses.get() + ", size: " + cache.size() + "/" + cache.maxSize() + " bytes");
+    }
+
+    // Helpers
+    public static String keyFor(User user, int sizePx) {
+        String hash = AvatarRendition.hashFor(user, sizePx);
+        if (hash != null) {
+            return hash + "@" + sizePx;
+        }
+        // String caches its hashCode, so repeated lookups for the same User don't rehash the picture
+        String base64Str = user.getProfilePicture();
+        return user.getUsername() + ":" + Integer.toHexString(base64Str.hashCode()) + ":" + base64Str.length() + "@" + sizePx;
+    }
+}
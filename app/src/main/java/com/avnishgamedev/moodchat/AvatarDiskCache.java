@@ -0,0 +1,156 @@
+package com.avnishgamedev.moodchat;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disk cache under the app cache dir that sits behind AvatarCache and AvatarStore.
+ * It holds both the original avatar bytes (keyed by content hash) and downscaled
+ * copies (keyed by hash and size), so a cold start can paint avatars without a
+ * Firestore round-trip or a full-size decode. Files are written atomically and
+ * evicted least recently used first once the size cap is reached.
+ */
+public class AvatarDiskCache {
+    private static final String TAG = "AvatarDiskCache";
+
+    private static final String DIR_NAME = "avatars";
+    private static final long MAX_BYTES = 20L * 1024 * 1024;
+
+    private static volatile AvatarDiskCache instance;
+
+    private final File dir;
+    // Access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long currentBytes = 0;
+    private boolean indexed = false;
+
+    private AvatarDiskCache(Context context) {
+        dir = new File(context.getCacheDir(), DIR_NAME);
+    }
+
+    public static void init(Context context) {
+        if (instance == null) {
+            synchronized (AvatarDiskCache.class) {
+                if (instance == null) {
+                    instance = new AvatarDiskCache(context.getApplicationContext());
+                }
+            }
+        }
+    }
+
+    // Null until init has been called from App
+    public static AvatarDiskCache getInstance() {
+        return instance;
+    }
+
+    @WorkerThread
+    public synchronized byte[] get(String key) {
+        ensureIndexed();
+        // get, not containsKey, so the hit moves the entry to the end of the access order
+        if (entries.get(key) == null) {
+            return null;
+        }
+
+        File file = fileFor(key);
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) throw new IOException("Unexpected end of " + file);
+                read += count;
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return bytes;
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable entry " + key, e);
+            remove(key);
+            return null;
+        }
+    }
+
+    @WorkerThread
+    public synchronized void put(String key, byte[] bytes) {
+        ensureIndexed();
+        if (bytes.length > MAX_BYTES) return;
+
+        // Write to a temp file first so a crash never leaves a truncated entry behind
+        File tmp = new File(dir, key + ".tmp");
+        File target = fileFor(key);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(bytes);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + key, e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(target)) {
+            Log.w(TAG, "Failed to commit " + key);
+            tmp.delete();
+            return;
+        }
+
+        Long previous = entries.put(key, (long) bytes.length);
+        currentBytes += bytes.length - (previous != null ? previous : 0);
+        trimToSize();
+    }
+
+    // Helpers
+    private void ensureIndexed() {
+        if (indexed) return;
+        indexed = true;
+
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Couldn't create " + dir);
+            return;
+        }
+
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            entries.put(file.getName(), file.length());
+            currentBytes += file.length();
+        }
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (currentBytes > MAX_BYTES && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            fileFor(eldest.getKey()).delete();
+            currentBytes -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            currentBytes -= size;
+        }
+        fileFor(key).delete();
+    }
+
+    private File fileFor(String key) {
+        return new File(dir, key);
+    }
+}
@@ -0,0 +1,302 @@
+package com.avnishgamedev.moodchat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Base64;
+import android.util.Log;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import androidx.annotation.DrawableRes;
+import androidx.annotation.MainThread;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Loads profile pictures into ImageViews off the main thread. Pictures are fetched from
+ * the AvatarStore (or the legacy inline field), downsampled to the size of the target
+ * view and decoded into pooled bitmaps where possible.
+ * All public methods must be called from the main thread.
+ */
+public class AvatarLoader {
+    private static final String TAG = "AvatarLoader";
+
+    // Used when the target view has no fixed size yet
+    private static final int DEFAULT_SIZE_PX = 256;
+    private static final int MAX_POOL_BYTES = 4 * 1024 * 1024;
+    // Quality of the downscaled copies kept on disk
+    private static final int SCALED_QUALITY = 90;
+
+    private static volatile AvatarLoader instance;
+
+    private final Map<ImageView, Request> pending = new WeakHashMap<>();
+    private final Map<ImageView, String> displayed = new WeakHashMap<>();
+    private final Set<String> ownedKeys = new HashSet<>();
+    private final BitmapPool pool = new BitmapPool(MAX_POOL_BYTES);
+
+    private AvatarLoader() {
+        AvatarCache.getInstance().setEvictionListener(this::onEvicted);
+    }
+
+    public static AvatarLoader getInstance() {
+        if (instance == null) {
+            synchronized (AvatarLoader.class) {
+                if (instance == null) {
+                    instance = new AvatarLoader();
+                }
+            }
+        }
+        return instance;
+    }
+
+    @MainThread
+    public void load(ImageView view, User user, @DrawableRes int placeholder) {
+        cancel(view);
+
+        if (!hasAvatar(user)) {
+            view.setImageResource(placeholder);
+            return;
+        }
+
+        int sizePx = targetSizeOf(view);
+        String key = AvatarCache.keyFor(user, sizePx);
+        Bitmap cached = AvatarCache.getInstance().get(key);
+        if (cached != null) {
+            show(view, key, cached);
+            return;
+        }
+
+        view.setImageResource(placeholder);
+        Request request = new Request();
+        pending.put(view, request);
+        decode(user, key, sizePx, request).addOnSuccessListener(AppExecutors.main(), bitmap -> {
+            if (bitmap != null && !request.cancelled && pending.get(view) == request) {
+                pending.remove(view);
+                show(view, key, bitmap);
+            }
+        });
+    }
+
+    // For callers without an ImageView, such as notifications
+    @MainThread
+    public Task<Bitmap> getAvatar(User user, int sizePx) {
+        if (!hasAvatar(user)) {
+            return Tasks.forResult(null);
+        }
+
+        String key = AvatarCache.keyFor(user, sizePx);
+        Bitmap cached = AvatarCache.getInstance().get(key);
+        if (cached != null) {
+            return Tasks.forResult(cached);
+        }
+        return decode(user, key, sizePx, new Request());
+    }
+
+    private Task<Bitmap> decode(User user, String key, int sizePx, Request request) {
+        String hash = AvatarRendition.hashFor(user, sizePx);
+        Task<Bitmap> decoded;
+        if (hash != null) {
+            // A downscaled copy on disk skips both the fetch and the full-size decode
+            String scaledKey = hash + "@" + sizePx;
+            decoded = Tasks.call(AppExecutors.io(), () -> readDisk(scaledKey))
+                    .continueWithTask(AppExecutors.main(), disk -> {
+                        byte[] scaled = disk.isSuccessful() ? disk.getResult() : null;
+                        if (scaled != null) {
+                            return decodeBytes(Tasks.forResult(scaled), user, sizePx, request, null);
+                        }
+                        return decodeBytes(AvatarStore.getInstance().get(hash), user, sizePx, request, scaledKey);
+                    });
+        } else {
+            String base64Str = user.getProfilePicture();
+            Task<byte[]> bytes = Tasks.call(AppExecutors.decode(), () -> Base64.decode(base64Str, Base64.DEFAULT));
+            decoded = decodeBytes(bytes, user, sizePx, request, null);
+        }
+
+        return decoded.continueWith(AppExecutors.main(), task -> {
+            Bitmap bitmap = task.isSuccessful() ? task.getResult() : null;
+            if (bitmap != null) {
+                synchronized (ownedKeys) {
+                    ownedKeys.add(key);
+                }
+                AvatarCache.getInstance().put(key, bitmap);
+            }
+            return bitmap;
+        });
+    }
+
+    // Writes the downscaled result back to disk when scaledKey is set
+    private Task<Bitmap> decodeBytes(Task<byte[]> bytes, User user, int sizePx, Request request, String scaledKey) {
+        return bytes.continueWith(AppExecutors.decode(), task -> {
+            if (!task.isSuccessful()) {
+                Log.w(TAG, "Failed to load profile picture for " + user.getUsername(), task.getException());
+                return null;
+            }
+            if (request.cancelled) return null;
+
+            Bitmap bitmap = decodeSampled(task.getResult(), sizePx, pool);
+            if (bitmap != null && scaledKey != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                bitmap.compress(AvatarRendition.webpFormat(), SCALED_QUALITY, out);
+                AppExecutors.io().execute(() -> writeDisk(scaledKey, out.toByteArray()));
+            }
+            return bitmap;
+        });
+    }
+
+    // Call from onViewRecycled so a late decode never lands on a reused row
+    @MainThread
+    public void cancel(ImageView view) {
+        Request request = pending.remove(view);
+        if (request != null) {
+            request.cancelled = true;
+        }
+        synchronized (displayed) {
+            displayed.remove(view);
+        }
+    }
+
+    private void show(ImageView view, String key, Bitmap bitmap) {
+        synchronized (displayed) {
+            displayed.put(view, key);
+        }
+        view.setImageBitmap(bitmap);
+    }
+
+    // Only bitmaps this loader decoded and no view is showing anymore are safe to reuse
+    private void onEvicted(String key, Bitmap bitmap) {
+        synchronized (ownedKeys) {
+            if (!ownedKeys.remove(key)) return;
+        }
+        synchronized (displayed) {
+            if (displayed.containsValue(key)) return;
+        }
+        pool.put(bitmap);
+    }
+
+    // Helpers
+    private static byte[] readDisk(String key) {
+        AvatarDiskCache disk = AvatarDiskCache.getInstance();
+        return disk != null ? disk.get(key) : null;
+    }
+
+    private static void writeDisk(String key, byte[] bytes) {
+        AvatarDiskCache disk = AvatarDiskCache.getInstance();
+        if (disk != null) {
+            disk.put(key, bytes);
+        }
+    }
+
+    private static boolean hasAvatar(User user) {
+        if (user == null) return false;
+        if (AvatarRendition.hashFor(user, 0) != null) return true;
+        return user.getProfilePicture() != null && !user.getProfilePicture().isEmpty();
+    }
+
+    private static int targetSizeOf(ImageView view) {
+        int size = Math.max(view.getWidth(), view.getHeight());
+        if (size > 0) {
+            return size;
+        }
+        ViewGroup.LayoutParams params = view.getLayoutParams();
+        if (params != null) {
+            size = Math.max(params.width, params.height);
+            if (size > 0) {
+                return size;
+            }
+        }
+        return DEFAULT_SIZE_PX;
+    }
+
+    static Bitmap decodeSampled(byte[] bytes, int targetPx, BitmapPool pool) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        // Sample down by powers of two while the short side stays above the target...
+        int shortSide = Math.min(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (shortSide / (sampleSize * 2) >= targetPx) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+
+        // ...then let the decoder scale the rest of the way
+        int sampledShortSide = shortSide / sampleSize;
+        if (sampledShortSide > targetPx) {
+            options.inScaled = true;
+            options.inDensity = sampledShortSide;
+            options.inTargetDensity = targetPx;
+        }
+
+        if (pool != null) {
+            float scale = options.inScaled ? (float) targetPx / sampledShortSide : 1f;
+            int width = Math.round(options.outWidth / (float) sampleSize * scale) + 1;
+            int height = Math.round(options.outHeight / (float) sampleSize * scale) + 1;
+            options.inBitmap = pool.get(width * height * 4);
+        }
+
+        try {
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap couldn't be reused, decode into a fresh one
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        }
+    }
+
+    private static class Request {
+        volatile boolean cancelled = false;
+    }
+
+    static class BitmapPool {
+        private final LinkedList<Bitmap> bitmaps = new LinkedList<>();
+        private final int maxBytes;
+        private int currentBytes = 0;
+
+        BitmapPool(int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized void put(Bitmap bitmap) {
+            if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) return;
+
+            int bytes = bitmap.getAllocationByteCount();
+            if (bytes > maxBytes) return;
+            while (currentBytes + bytes > maxBytes && !bitmaps.isEmpty()) {
+                currentBytes -= bitmaps.removeFirst().getAllocationByteCount();
+            }
+            bitmaps.addLast(bitmap);
+            currentBytes += bytes;
+        }
+
+        // Smallest pooled bitmap that can hold minBytes, or null
+        synchronized Bitmap get(int minBytes) {
+            Bitmap best = null;
+            for (Bitmap bitmap : bitmaps) {
+                int bytes = bitmap.getAllocationByteCount();
+                if (bytes >= minBytes && (best == null || bytes < best.getAllocationByteCount())) {
+                    best = bitmap;
+                }
+            }
+            if (best != null) {
+                bitmaps.remove(best);
+                currentBytes -= best.getAllocationByteCount();
+            }
+            return best;
+        }
+    }
+}
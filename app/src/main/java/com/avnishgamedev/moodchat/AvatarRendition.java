@@ -0,0 +1,98 @@
+package com.avnishgamedev.moodchat;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed set of profile picture sizes generated at upload time. Readers pick the
+ * smallest rendition that covers the view they draw into.
+ */
+public enum AvatarRendition {
+    SMALL("small", 192, 70),    // Notifications and list rows
+    MEDIUM("medium", 384, 75),  // Conversation header
+    LARGE("large", 768, 80);    // Profile screen
+
+    public final String key;
+    public final int sizePx;
+    public final int quality;
+
+    AvatarRendition(String key, int sizePx, int quality) {
+        this.key = key;
+        this.sizePx = sizePx;
+        this.quality = quality;
+    }
+
+    // Encodes every rendition of a square bitmap and uploads it, resolves to rendition key -> hash
+    public static Task<Map<String, String>> uploadAll(Bitmap square) {
+        List<Task<String>> uploads = new ArrayList<>();
+        for (AvatarRendition rendition : values()) {
+            uploads.add(Tasks.call(AppExecutors.decode(), () -> rendition.encode(square))
+                    .onSuccessTask(bytes -> AvatarStore.getInstance().put(bytes)));
+        }
+
+        return Tasks.whenAllSuccess(uploads).continueWith(task -> {
+            if (!task.isSuccessful()) {
+                throw task.getException();
+            }
+            Map<String, String> hashes = new HashMap<>();
+            List<Object> results = task.getResult();
+            for (int i = 0; i < results.size(); i++) {
+                hashes.put(values()[i].key, (String) results.get(i));
+            }
+            return hashes;
+        });
+    }
+
+    // Smallest uploaded rendition that is at least targetPx wide, falling back to the largest one
+    public static String hashFor(User user, int targetPx) {
+        Map<String, String> renditions = user.getProfilePictureRenditions();
+        if (renditions != null && !renditions.isEmpty()) {
+            String fallback = null;
+            for (AvatarRendition rendition : values()) {
+                String hash = renditions.get(rendition.key);
+                if (hash == null) continue;
+                if (rendition.sizePx >= targetPx) {
+                    return hash;
+                }
+                fallback = hash;
+            }
+            if (fallback != null) {
+                return fallback;
+            }
+        }
+        return user.getProfilePictureHash();
+    }
+
+    byte[] encode(Bitmap square) {
+        Bitmap scaled = square;
+        if (square.getWidth() > sizePx) {
+            scaled = Bitmap.createScaledBitmap(square, sizePx, sizePx, true);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        scaled.compress(webpFormat(), quality, out);
+        if (scaled != square) {
+            scaled.recycle();
+        }
+        return out.toByteArray();
+    }
+
+    // Helpers
+    @SuppressWarnings("deprecation")
+    static Bitmap.CompressFormat webpFormat() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            return Bitmap.CompressFormat.WEBP_LOSSY;
+        }
+        // Below R, WEBP is lossy for any quality under 100
+        return Bitmap.CompressFormat.WEBP;
+    }
+}
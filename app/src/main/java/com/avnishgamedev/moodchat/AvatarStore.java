@@ -0,0 +1,202 @@
+package com.avnishgamedev.moodchat;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.Blob;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-addressed storage for profile pictures. Each picture lives in
+ * avatars/{sha256} with its bytes split across a chunks subcollection, so user
+ * documents only carry the hash and readers fetch the bytes once per picture.
+ * Fetched bytes are also kept in AvatarDiskCache so they survive process death.
+ */
+public class AvatarStore {
+    private static final String TAG = "AvatarStore";
+
+    // Stays well below Firestore's 1 MiB document limit
+    private static final int CHUNK_SIZE = 512 * 1024;
+    private static final int MAX_MEMORY_BYTES = 2 * 1024 * 1024;
+
+    private static volatile AvatarStore instance;
+
+    private final FirebaseFirestore db;
+    private final LruCache<String, byte[]> memory;
+    private final Map<String, Task<byte[]>> inFlight = new HashMap<>();
+
+    private AvatarStore() {
+        db = FirebaseFirestore.getInstance();
+        memory = new LruCache<String, byte[]>(MAX_MEMORY_BYTES) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    public static AvatarStore getInstance() {
+        if (instance == null) {
+            synchronized (AvatarStore.class) {
+                if (instance == null) {
+                    instance = new AvatarStore();
+                }
+            }
+        }
+        return instance;
+    }
+
+    // Uploads the bytes unless a picture with the same hash already exists, resolves to the hash
+    public Task<String> put(byte[] bytes) {
+        String hash = sha256(bytes);
+        DocumentReference avatarRef = avatarRef(hash);
+
+        return avatarRef.get().continueWithTask(task -> {
+            if (task.isSuccessful() && task.getResult().exists()) {
+                return Tasks.forResult(hash);
+            }
+
+            int chunkCount = (bytes.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            WriteBatch batch = db.batch();
+            for (int i = 0; i < chunkCount; i++) {
+                int from = i * CHUNK_SIZE;
+                int to = Math.min(bytes.length, from + CHUNK_SIZE);
+                Map<String, Object> chunk = new HashMap<>();
+                chunk.put("index", i);
+                chunk.put("data", Blob.fromBytes(Arrays.copyOfRange(bytes, from, to)));
+                batch.set(chunksRef(hash).document(String.valueOf(i)), chunk);
+            }
+
+            Map<String, Object> header = new HashMap<>();
+            header.put("size", bytes.length);
+            header.put("chunkCount", chunkCount);
+            header.put("createdAt", FieldValue.serverTimestamp());
+            batch.set(avatarRef, header);
+
+            return batch.commit().continueWith(commit -> {
+                if (!commit.isSuccessful()) {
+                    throw commit.getException();
+                }
+                memory.put(hash, bytes);
+                AppExecutors.io().execute(() -> writeDisk(hash, bytes));
+                return hash;
+            });
+        });
+    }
+
+    // Must be called from the main thread, concurrent requests for the same hash share one fetch
+    public Task<byte[]> get(String hash) {
+        byte[] cached = memory.get(hash);
+        if (cached != null) {
+            return Tasks.forResult(cached);
+        }
+
+        Task<byte[]> running = inFlight.get(hash);
+        if (running != null) {
+            return running;
+        }
+
+        Task<byte[]> task = Tasks.call(AppExecutors.io(), () -> readDisk(hash))
+                .continueWithTask(AppExecutors.main(), disk -> {
+                    if (disk.isSuccessful() && disk.getResult() != null) {
+                        return Tasks.forResult(disk.getResult());
+                    }
+                    return fetch(hash);
+                })
+                .addOnCompleteListener(AppExecutors.main(), done -> {
+                    inFlight.remove(hash);
+                    if (done.isSuccessful()) {
+                        memory.put(hash, done.getResult());
+                    } else {
+                        Log.w(TAG, "Failed to fetch avatar " + hash, done.getException());
+                    }
+                });
+
+        inFlight.put(hash, task);
+        return task;
+    }
+
+    private Task<byte[]> fetch(String hash) {
+        return chunksRef(hash).orderBy("index").get().continueWith(AppExecutors.io(), query -> {
+            if (!query.isSuccessful()) {
+                throw query.getException();
+            }
+
+            List<DocumentSnapshot> chunks = query.getResult().getDocuments();
+            if (chunks.isEmpty()) {
+                throw new AvatarNotFoundException(hash);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (DocumentSnapshot chunk : chunks) {
+                Blob data = chunk.getBlob("data");
+                if (data != null) {
+                    out.write(data.toBytes());
+                }
+            }
+
+            byte[] bytes = out.toByteArray();
+            if (!hash.equals(sha256(bytes))) {
+                throw new AvatarNotFoundException(hash);
+            }
+            writeDisk(hash, bytes);
+            return bytes;
+        });
+    }
+
+    // Helpers
+    private static byte[] readDisk(String hash) {
+        AvatarDiskCache disk = AvatarDiskCache.getInstance();
+        return disk != null ? disk.get(hash) : null;
+    }
+
+    private static void writeDisk(String hash, byte[] bytes) {
+        AvatarDiskCache disk = AvatarDiskCache.getInstance();
+        if (disk != null) {
+            disk.put(hash, bytes);
+        }
+    }
+
+    public static String sha256(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private DocumentReference avatarRef(String hash) {
+        return db.collection("avatars").document(hash);
+    }
+
+    private CollectionReference chunksRef(String hash) {
+        return avatarRef(hash).collection("chunks");
+    }
+
+    public static class AvatarNotFoundException extends Exception {
+        public AvatarNotFoundException(String hash) {
+            super("Avatar " + hash + " not found!");
+        }
+    }
+}
@@ -5,14 +5,21 @@ import com.google.firebase.firestore.DocumentId;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 public class Conversation implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     @DocumentId
     private String id;
     private List<String> members;
     private String lastMessage;
     private Date lastMessageTimestamp;
     private ConversationThemeData themeData;
+    // username -> sentAt of the newest message that member has seen
+    private Map<String, Date> readUpTo;
+    // username -> what a row needs of that member's profile
+    private Map<String, MemberSummary> memberSummaries;
 
     public Conversation() {}
     public Conversation(List<String> members, String lastMessage, Date lastMessageTimestamp, ConversationThemeData themeData) {
@@ -56,4 +63,28 @@ public class Conversation implements Serializable {
     public void setThemeData(ConversationThemeData themeData) {
         this.themeData = themeData;
     }
+
+    public Map<String, Date> getReadUpTo() {
+        return readUpTo;
+    }
+    public void setReadUpTo(Map<String, Date> readUpTo) {
+        this.readUpTo = readUpTo;
+    }
+
+    public Map<String, MemberSummary> getMemberSummaries() {
+        return memberSummaries;
+    }
+    public void setMemberSummaries(Map<String, MemberSummary> memberSummaries) {
+        this.memberSummaries = memberSummaries;
+    }
+
+    // Summary of one member, null on conversations created before summaries existed
+    public MemberSummary getMemberSummary(String username) {
+        return memberSummaries != null ? memberSummaries.get(username) : null;
+    }
+
+    // Read watermark of one member, null if they haven't read anything yet
+    public Date getReadUpTo(String username) {
+        return readUpTo != null ? readUpTo.get(username) : null;
+    }
 }
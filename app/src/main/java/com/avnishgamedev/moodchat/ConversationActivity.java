@@ -1,12 +1,9 @@
 package com.avnishgamedev.moodchat;
 
-import static com.avnishgamedev.moodchat.MessagesAdapter.base64ToBitmap;
-
 import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.res.ColorStateList;
-import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.Settings;
@@ -27,30 +24,39 @@ import androidx.constraintlayout.widget.ConstraintLayout;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.core.graphics.ColorUtils;
+import androidx.lifecycle.Lifecycle;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.google.android.gms.tasks.Tasks;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.progressindicator.CircularProgressIndicator;
 import com.google.android.material.snackbar.Snackbar;
 import com.google.firebase.firestore.DocumentChange;
-import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.EventListener;
 import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.FirebaseFirestoreException;
 import com.google.firebase.firestore.ListenerRegistration;
 import com.google.firebase.firestore.Query;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.IntStream;
+import java.util.Objects;
 
 public class ConversationActivity extends AppCompatActivity implements CallManager.CallListener {
     private static final String TAG = "ConversationActivity";
 
+    // Paging
+    private static final int PAGE_SIZE = 30;
+    private static final int MAX_WINDOW = 5 * PAGE_SIZE;
+    // Read receipts wait for scrolling to settle before writing the watermark
+    private static final long READ_RECEIPT_DEBOUNCE_MS = 2000;
+    // Roughly a screenful of each bubble kind
+    private static final int PREWARM_PER_TYPE = 8;
+
     // Views
     ConstraintLayout constraintLayout;
     View viewBackground;
@@ -62,6 +68,20 @@ public class ConversationActivity extends AppCompatActivity implements CallManag
     ImageView ivStatus;
     RecyclerView rvMessages;
     MessagesAdapter adapter;
+    MessageItemMapper itemMapper;
+    int mapGeneration = 0;
+    ConversationThemeData appliedTheme;
+    boolean adapterThemed = false;
+    LinearLayoutManager layoutManager;
+    // My read watermark as last written, and the newer one waiting for the debounce
+    Date readUpTo;
+    Date pendingReadUpTo;
+    private final Runnable readReceiptFlush = this::flushReadReceipt;
+    // Incoming messages seen here leave "sent", or the background service would notify them later
+    private final DeliveryAckCoalescer deliveryAcks = new DeliveryAckCoalescer();
+    boolean pendingScrollToEnd = false;
+    // Message to centre once the first window is rendered, e.g. when opened from a search result
+    String anchorMessageId;
     EditText etMessage;
     FloatingActionButton flSend;
     CircularProgressIndicator progressIndicator;
@@ -69,8 +89,13 @@ public class ConversationActivity extends AppCompatActivity implements CallManag
 
     // Meta data
     Conversation conversation;
-    List<Message> messages;
+    MessageList messages;
     ListenerRegistration messagesRegistration;
+    ListenerRegistration conversationRegistration;
+    boolean hasOlder = false;
+    boolean hasNewer = false;
+    boolean loadingOlder = false;
+    boolean loadingNewer = false;
     User thisUser;
     User otherUser;
 
@@ -98,28 +123,26 @@ public class ConversationActivity extends AppCompatActivity implements CallManag
         }
 
         conversation = (Conversation) getIntent().getSerializableExtra("conversation");
-        messages = new ArrayList<>();
+        anchorMessageId = getIntent().getStringExtra("anchorMessageId");
+        messages = new MessageList();
 
         setupViews();
         loadInitialData();
         setupVideoCall();
 
-        MainActivity.conversationsUpdated = new EventListener<Conversation>() {
-            @Override
-            public void onEvent(@Nullable Conversation value, @Nullable FirebaseFirestoreException error) {
-                if (value != null) {
-                    if (conversation.getId().equals(value.getId())) {
-                        conversation = value;
-                        setThemeFromData(conversation.getThemeData());
-                    }
-                }
-            }
-        };
+        startConversationListener();
     }
 
     @Override
     protected void onDestroy() {
         stopMessagesListener();
+        if (conversationRegistration != null) {
+            conversationRegistration.remove();
+            conversationRegistration = null;
+        }
+        if (BuildConfig.DEBUG) {
+            AvatarCache.getInstance().logStats();
+        }
         super.onDestroy();
 
         // Dismiss any active call dialog
@@ -137,6 +160,9 @@ public class ConversationActivity extends AppCompatActivity implements CallManag
     @Override
     protected void onPause() {
         super.onPause();
+        flushReadReceipt();
+        // Before the service starts listening for undelivered messages
+        deliveryAcks.flushAll();
 
         // Dismiss dialog when leaving the activity
         if (incomingCallDialog != null && incomingCallDialog.isShowing()) {
@@ -161,8 +187,6 @@ public class ConversationActivity extends AppCompatActivity implements CallManag
         progressIndicator = findViewById(R.id.progressIndicator);
         loadingContainer = findViewById(R.id.loadingContainer);
 
-        rvMessages.setLayoutManager(new LinearLayoutManager(this));
-
         ivBack.setOnClickListener(v -> finish());
         flSend.setOnClickListener(v -> sendMessage());
         btnVideoCall.setOnClickListener(v -> initiateVideoCall());
@@ -479,11 +503,19 @@ public class ConversationActivity extends AppCompatActivity implements CallManag
             }
 
             otherUser = snap.toObject(User.class);
+            UserRepository.getInstance().put(otherUser);
+
+            // Summaries missed by a fan-out, e.g. while offline, are resynced when the conversation is opened
+            MemberSummary summary = conversation.getMemberSummary(otherUser.getUsername());
+            if (!Objects.equals(summary, MemberSummary.of(otherUser))) {
+                ConversationHelpers.refreshMemberSummary(conversation.getId(), otherUser)
+                        .addOnFailureListener(err -> Log.w(TAG, "Failed to resync member summary", err));
+            }
 
             // UI updates
             tvChatName.setText(otherUser.getName());
             tvChatUsername.setText(otherUser.getUsername());
-            ivProfilePic.setImageBitmap(base64ToBitmap(otherUser.getProfilePicture()));
+            AvatarLoader.getInstance().load(ivProfilePic, otherUser, R.drawable.ic_person);
             ivStatus.setImageResource(otherUser.isOnline() ? R.drawable.circle_online : R.drawable.circle_offline);
 
             if (adapter == null) {
@@ -497,50 +529,227 @@ public class ConversationActivity extends AppCompatActivity implements CallManag
     }
 
     private void initialiseAdapter() {
-        adapter = new MessagesAdapter(messages, thisUser, otherUser);
+        adapter = new MessagesAdapter(thisUser, otherUser);
+        adapter.prewarm(rvMessages, PREWARM_PER_TYPE);
+        itemMapper = new MessageItemMapper(thisUser.getUsername());
+        itemMapper.setPeerReadUpTo(conversation.getReadUpTo(otherUser.getUsername()));
+        readUpTo = conversation.getReadUpTo(thisUser.getUsername());
+        adapter.setTextParamsListener((isMine, params) -> {
+            itemMapper.setTextParams(isMine, params);
+            // Rebuild so rows already on screen get precomputed layouts for the next bind
+            submitMessages(false);
+        });
         rvMessages.setAdapter(adapter);
-        rvMessages.setLayoutManager(new LinearLayoutManager(this));
+        layoutManager = new LinearLayoutManager(this);
+        rvMessages.setLayoutManager(layoutManager);
+        rvMessages.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                // Keep one page loaded ahead of the viewport in both directions
+                if (layoutManager.findFirstVisibleItemPosition() <= PAGE_SIZE) {
+                    loadOlderMessages();
+                }
+                if (layoutManager.findLastVisibleItemPosition() >= adapter.getItemCount() - PAGE_SIZE) {
+                    loadNewerMessages();
+                }
+                noteReadProgress();
+            }
+        });
 
         if (conversation.getThemeData() != null) {
             setThemeFromData(conversation.getThemeData());
         }
 
-        ConversationHelpers.getMessagesQuery(conversation.getId()).limit(10).get()
-                .addOnSuccessListener(snap -> {
-                    Log.d(TAG, "Initial messages loaded: " + snap.size());
+        if (anchorMessageId != null) {
+            loadAroundAnchor();
+        } else {
+            loadLatestFromDisk();
+        }
+    }
 
-                    for (DocumentSnapshot d : snap.getDocuments()) {
-                        Message m = d.toObject(Message.class);
-                        if (m != null) {
-                            m.setId(d.getId());
-                            messages.add(m);
+    // Render whatever is on disk right away, then pull only what is newer than the stored cursor
+    private void loadLatestFromDisk() {
+        String conversationId = conversation.getId();
+        Tasks.call(AppExecutors.io(), () -> {
+            LocalStore store = LocalStore.getInstance();
+            return store != null ? store.getLatestMessages(conversationId, PAGE_SIZE) : Collections.<Message>emptyList();
+        }).addOnCompleteListener(this, local -> {
+            if (local.isSuccessful() && !local.getResult().isEmpty()) {
+                for (Message m : local.getResult()) {
+                    messages.append(m);
+                }
+                hasOlder = true;
+                setLoading(false);
+                submitMessages(true);
+            }
+            syncMessages();
+        });
+    }
 
-                            if (m.getStatus().equalsIgnoreCase("sent")) {
-                                ConversationHelpers.updateMessageStatus(conversation.getId(), m.getId(), "read")
-                                        .addOnFailureListener(e -> Log.e(TAG, "Failed to update message status:", e));
-                            }
+    // Opens the window on a page either side of the anchor, newer pages are loaded as the user scrolls down
+    private void loadAroundAnchor() {
+        String conversationId = conversation.getId();
+        String anchorId = anchorMessageId;
+        Tasks.call(AppExecutors.io(), () -> {
+            LocalStore store = LocalStore.getInstance();
+            Message anchor = store != null ? store.getMessage(anchorId) : null;
+            if (anchor == null) return Collections.<Message>emptyList();
+
+            List<Message> window = new ArrayList<>(store.getMessagesBefore(conversationId, anchor, PAGE_SIZE));
+            window.add(anchor);
+            window.addAll(store.getMessagesAfter(conversationId, anchor, PAGE_SIZE));
+            return window;
+        }).addOnCompleteListener(this, local -> {
+            if (!local.isSuccessful() || local.getResult().isEmpty()) {
+                Log.w(TAG, "Anchor " + anchorId + " not on disk, opening at the newest messages", local.getException());
+                anchorMessageId = null;
+                loadLatestFromDisk();
+                return;
+            }
+
+            for (Message m : local.getResult()) {
+                messages.append(m);
+            }
+            hasOlder = true;
+            hasNewer = messages.size() - 1 - messages.positionOf(anchorId) == PAGE_SIZE;
+            setLoading(false);
+            submitMessages(false);
+            syncMessages();
+        });
+    }
+
+    private void syncMessages() {
+        boolean renderedFromDisk = !messages.isEmpty();
+        SyncEngine.getInstance().syncConversation(conversation.getId(), PAGE_SIZE)
+                .addOnCompleteListener(this, task -> {
+                    if (task.isSuccessful()) {
+                        List<Message> pulled = task.getResult();
+                        acknowledgeDelivered(pulled);
+                        if (!renderedFromDisk) {
+                            hasOlder = pulled.size() >= PAGE_SIZE;
                         }
+                        submitMessages(mergeNewest(pulled));
+                    } else if (renderedFromDisk) {
+                        Log.w(TAG, "Sync failed, showing messages from disk", task.getException());
+                    } else {
+                        Log.e(TAG, "Failed to load initial messages", task.getException());
+                        Toast.makeText(this, "Failed to load initial messages", Toast.LENGTH_SHORT).show();
                     }
 
                     // Critical: Stop loading here
                     setLoading(false);
-                    adapter.notifyDataSetChanged();
+                    // The listener is anchored at the newest message, so it waits until the window reaches it
+                    if (!hasNewer) {
+                        startMessagesListener();
+                    }
+                });
+    }
+
+    // Applies messages at the newest end of the conversation, returns whether any were appended
+    private boolean mergeNewest(List<Message> newest) {
+        boolean appended = false;
+        for (Message m : newest) {
+            if (messages.containsId(m.getId())) {
+                messages.replace(m);
+            } else if (!hasNewer && isAfterWindow(m)) {
+                messages.append(m);
+                appended = true;
+            }
+        }
+
+        int excess = messages.size() - MAX_WINDOW;
+        if (excess > 0) {
+            messages.trimFront(excess);
+            hasOlder = true;
+        }
+        return appended;
+    }
+
+    private void loadOlderMessages() {
+        if (!hasOlder || loadingOlder || messages.isEmpty()) return;
+        loadingOlder = true;
+
+        // Disk first, the network only when the disk runs out
+        String conversationId = conversation.getId();
+        Message oldest = messages.get(0);
+        Tasks.call(AppExecutors.io(), () -> {
+            LocalStore store = LocalStore.getInstance();
+            return store != null ? store.getMessagesBefore(conversationId, oldest, PAGE_SIZE) : Collections.<Message>emptyList();
+        }).continueWithTask(AppExecutors.main(), local -> {
+            List<Message> fromDisk = local.isSuccessful() ? local.getResult() : Collections.emptyList();
+            if (fromDisk.size() == PAGE_SIZE) {
+                return Tasks.forResult(fromDisk);
+            }
+            return ConversationHelpers.getMessagesBefore(conversationId, oldest, PAGE_SIZE).continueWith(page -> {
+                if (!page.isSuccessful()) {
+                    // Offline, show what the disk has
+                    if (!fromDisk.isEmpty()) return fromDisk;
+                    throw page.getException();
+                }
+                List<Message> fetched = SyncEngine.toMessages(page.getResult());
+                SyncEngine.getInstance().recordMessages(conversationId, fetched);
+                return fetched;
+            });
+        }).addOnCompleteListener(this, task -> {
+            loadingOlder = false;
+            if (!task.isSuccessful()) {
+                Log.e(TAG, "Failed to load older messages", task.getException());
+                return;
+            }
+
+            List<Message> older = task.getResult();
+            hasOlder = older.size() == PAGE_SIZE;
+            messages.prependAll(older);
 
-                    if (messages.size() > 0) {
-                        rvMessages.scrollToPosition(messages.size() - 1);
+            // Keep the window bounded by dropping the newest messages, they are paged back in on demand
+            int excess = messages.size() - MAX_WINDOW;
+            if (excess > 0) {
+                messages.trimBack(excess);
+                hasNewer = true;
+            }
+            submitMessages(false);
+        });
+    }
+
+    private void loadNewerMessages() {
+        if (!hasNewer || loadingNewer || messages.isEmpty()) return;
+        loadingNewer = true;
+
+        ConversationHelpers.getMessagesAfter(conversation.getId(), messages.get(messages.size() - 1), PAGE_SIZE)
+                .addOnCompleteListener(this, task -> {
+                    loadingNewer = false;
+                    if (!task.isSuccessful()) {
+                        Log.e(TAG, "Failed to load newer messages", task.getException());
+                        return;
                     }
 
-                    startMessagesListener();
-                })
-                .addOnFailureListener(e -> {
-                    Log.e(TAG, "Failed to load initial messages", e);
-                    Toast.makeText(this, "Failed to load initial messages", Toast.LENGTH_SHORT).show();
-                    setLoading(false); // Critical: Stop loading on failure too
+                    List<Message> newer = SyncEngine.toMessages(task.getResult());
+                    SyncEngine.getInstance().recordMessages(conversation.getId(), newer);
+                    acknowledgeDelivered(newer);
+                    hasNewer = newer.size() == PAGE_SIZE;
+                    for (Message m : newer) {
+                        if (!messages.containsId(m.getId())) {
+                            messages.append(m);
+                        }
+                    }
+
+                    int excess = messages.size() - MAX_WINDOW;
+                    if (excess > 0) {
+                        messages.trimFront(excess);
+                        hasOlder = true;
+                    }
+                    submitMessages(false);
+
+                    if (!hasNewer && messagesRegistration == null) {
+                        startMessagesListener();
+                    }
                 });
     }
 
+    // Only listens from the newest loaded message onwards, older history stays one-shot page reads
     private void startMessagesListener() {
-        Query query = ConversationHelpers.getMessagesQuery(conversation.getId());
+        Message newest = messages.isEmpty() ? null : messages.get(messages.size() - 1);
+        Query query = ConversationHelpers.getMessagesFromQuery(conversation.getId(), newest);
         messagesRegistration = query.addSnapshotListener((snap, e) -> {
             if (e != null) {
                 Log.e(TAG, "Messages listen failed", e);
@@ -551,42 +760,150 @@ public class ConversationActivity extends AppCompatActivity implements CallManag
                 return;
             }
 
+            // Apply the whole batch, then hand one snapshot to the adapter to diff off the main thread
+            boolean appended = false;
+            List<Message> changed = new ArrayList<>();
             for (DocumentChange dc : snap.getDocumentChanges()) {
                 if (dc.getType() == DocumentChange.Type.ADDED) {
                     Message newMessage = dc.getDocument().toObject(Message.class);
                     newMessage.setId(dc.getDocument().getId());
+                    changed.add(newMessage);
 
-                    // Prevent duplicates from initial load
-                    boolean exists = messages.stream().anyMatch(m -> m.getId().equals(newMessage.getId()));
-                    if (!exists) {
-                        messages.add(newMessage);
+                    // Only extend the window when it already reaches the newest message, anything else is paged in
+                    if (!messages.containsId(newMessage.getId()) && !hasNewer && isAfterWindow(newMessage)) {
+                        messages.append(newMessage);
+                        appended = true;
                         Log.d(TAG, "New message from listener: " + newMessage.getMessage());
-
-                        adapter.notifyItemInserted(messages.size() - 1);
-                        rvMessages.scrollToPosition(messages.size() - 1);
-
-                        if (newMessage.getSenderUsername().equals(ConversationHelpers.getOtherUsername(conversation.getId(), UserManager.getInstance().getUser().getUsername()))) {
-                            ConversationHelpers.updateMessageStatus(conversation.getId(), newMessage.getId(), "read")
-                                    .addOnFailureListener(e1 -> Log.e(TAG, "Failed to update message status:", e1));
-                        }
                     }
                 } else if (dc.getType() == DocumentChange.Type.MODIFIED) {
                     Message modifiedMessage = dc.getDocument().toObject(Message.class);
                     modifiedMessage.setId(dc.getDocument().getId());
+                    changed.add(modifiedMessage);
+                    messages.replace(modifiedMessage);
+                } else if (dc.getType() == DocumentChange.Type.REMOVED) {
+                    messages.removeById(dc.getDocument().getId());
+                    SyncEngine.getInstance().recordRemoved(dc.getDocument().getId());
+                }
+            }
+            SyncEngine.getInstance().recordMessages(conversation.getId(), changed);
+            acknowledgeDelivered(changed);
 
-                    int index = IntStream.range(0, messages.size())
-                            .filter(i -> messages.get(i).getId().equals(modifiedMessage.getId()))
-                            .findFirst()
-                            .orElse(-1);
-                    if (index != -1) {
-                        messages.set(index, modifiedMessage);
-                        adapter.notifyItemChanged(index);
-                    }
+            int excess = messages.size() - MAX_WINDOW;
+            if (excess > 0) {
+                messages.trimFront(excess);
+                hasOlder = true;
+            }
+            submitMessages(appended);
+        });
+    }
+
+    // Maps the window into display items off the main thread, only the newest mapping reaches the adapter
+    private void submitMessages(boolean scrollToEnd) {
+        int generation = ++mapGeneration;
+        pendingScrollToEnd |= scrollToEnd;
+        itemMapper.map(messages.snapshot()).addOnCompleteListener(this, task -> {
+            if (generation != mapGeneration) return;
+            if (!task.isSuccessful()) {
+                Log.e(TAG, "Failed to map messages", task.getException());
+                return;
+            }
+
+            boolean scroll = pendingScrollToEnd;
+            pendingScrollToEnd = false;
+            int anchorPosition = anchorMessageId != null ? indexOf(task.getResult(), anchorMessageId) : -1;
+            if (anchorPosition >= 0) {
+                anchorMessageId = null;
+            }
+            adapter.submitList(task.getResult(), () -> {
+                if (anchorPosition >= 0) {
+                    layoutManager.scrollToPositionWithOffset(anchorPosition, rvMessages.getHeight() / 3);
+                } else if (scroll && adapter.getItemCount() > 0) {
+                    rvMessages.scrollToPosition(adapter.getItemCount() - 1);
                 }
+                rvMessages.post(this::noteReadProgress);
+            });
+        });
+    }
+
+    private void startConversationListener() {
+        ConversationHelpers.bindConversation(conversation.getId(), (snap, e) -> {
+            if (e != null) {
+                Log.e(TAG, "Conversation listen failed", e);
+                return;
+            }
+            if (snap == null || !snap.exists()) return;
+
+            Conversation value = snap.toObject(Conversation.class);
+            if (value == null) return;
+            value.setId(snap.getId());
+            conversation = value;
+            setThemeFromData(conversation.getThemeData());
+
+            // Statuses of my messages are derived from the other member's watermark
+            if (itemMapper != null && otherUser != null) {
+                Date peerReadUpTo = conversation.getReadUpTo(otherUser.getUsername());
+                if (!Objects.equals(peerReadUpTo, itemMapper.getPeerReadUpTo())) {
+                    itemMapper.setPeerReadUpTo(peerReadUpTo);
+                    submitMessages(false);
+                }
+            }
+        }).addOnSuccessListener(registration -> {
+            if (isDestroyed()) {
+                registration.remove();
+            } else {
+                conversationRegistration = registration;
             }
         });
     }
 
+    // Moves the pending watermark up to the newest message on screen, written once scrolling settles
+    private void noteReadProgress() {
+        if (layoutManager == null || adapter.getItemCount() == 0) return;
+        if (!getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.RESUMED)) return;
+
+        // Positions index the adapter's list, not messages, which runs ahead of it until a diff commits
+        int lastVisible = Math.min(layoutManager.findLastVisibleItemPosition(), adapter.getItemCount() - 1);
+        if (lastVisible < 0) return;
+
+        Date seen = new Date(adapter.getItem(lastVisible).message.getSentAtMillis());
+        Date current = pendingReadUpTo != null ? pendingReadUpTo : readUpTo;
+        if (current != null && !seen.after(current)) return;
+
+        pendingReadUpTo = seen;
+        AppExecutors.mainHandler().removeCallbacks(readReceiptFlush);
+        AppExecutors.mainHandler().postDelayed(readReceiptFlush, READ_RECEIPT_DEBOUNCE_MS);
+    }
+
+    private void flushReadReceipt() {
+        AppExecutors.mainHandler().removeCallbacks(readReceiptFlush);
+        if (pendingReadUpTo == null) return;
+
+        readUpTo = pendingReadUpTo;
+        pendingReadUpTo = null;
+        ConversationHelpers.markReadUpTo(conversation.getId(), thisUser.getUsername(), readUpTo)
+                .addOnFailureListener(e -> Log.e(TAG, "Failed to update read watermark", e));
+    }
+
+    private void acknowledgeDelivered(List<Message> received) {
+        if (thisUser == null) return;
+        for (Message m : received) {
+            if ("sent".equals(m.getStatus()) && !thisUser.getUsername().equals(m.getSenderUsername())) {
+                deliveryAcks.acknowledge(conversation.getId(), m.getId());
+            }
+        }
+    }
+
+    private static int indexOf(List<MessageItem> items, String id) {
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).id.equals(id)) return i;
+        }
+        return -1;
+    }
+
+    private boolean isAfterWindow(Message message) {
+        return messages.isEmpty() || ConversationHelpers.compareMessages(message, messages.get(messages.size() - 1)) > 0;
+    }
+
     private void stopMessagesListener() {
         if (messagesRegistration != null) {
             messagesRegistration.remove();
@@ -606,36 +923,41 @@ public class ConversationActivity extends AppCompatActivity implements CallManag
 
 
     private void setThemeFromData(ConversationThemeData data) {
-        if (data != null) {
-            viewBackground.setBackgroundColor(Color.parseColor(data.getBackground()));
-            constraintLayout.setBackgroundColor(Color.parseColor(data.getSurrounding()));
+        // Conversation snapshots usually carry the same theme again
+        if (data == null || !data.isComplete() || (data.samePalette(appliedTheme) && (adapter == null || adapterThemed))) {
+            return;
+        }
+        appliedTheme = data;
+
+        viewBackground.setBackgroundColor(data.getBackgroundArgb());
+        constraintLayout.setBackgroundColor(data.getSurroundingArgb());
 
-            // For TextInputEditText
-            etMessage.setBackgroundTintList(ColorStateList.valueOf(Color.parseColor(data.getMessageBackground())));
-            etMessage.setTextColor(Color.parseColor(data.getMessageTextColour()));
+        // For TextInputEditText
+        etMessage.setBackgroundTintList(ColorStateList.valueOf(data.getMessageBackgroundArgb()));
+        etMessage.setTextColor(data.getMessageTextColourArgb());
 
-            // Set hint color based on message background brightness
-            int hintColor = getContrastingHintColor(data.getMessageBackground());
-            etMessage.setHintTextColor(hintColor);
+        // Set hint color based on message background brightness
+        int hintColor = getContrastingHintColor(data.getMessageBackgroundArgb());
+        etMessage.setHintTextColor(hintColor);
 
-            // For FloatingActionButton
-            flSend.setBackgroundTintList(ColorStateList.valueOf(Color.parseColor(data.getSendBackground())));
-            flSend.setImageTintList(ColorStateList.valueOf(Color.parseColor(data.getSendIconTint())));
+        // For FloatingActionButton
+        flSend.setBackgroundTintList(ColorStateList.valueOf(data.getSendBackgroundArgb()));
+        flSend.setImageTintList(ColorStateList.valueOf(data.getSendIconTintArgb()));
 
-            if (adapter != null)
-                adapter.setBubbleColours(data.getSentBubbleColour(), data.getReceivedBubbleColour(), data.getSentTextColour(), data.getReceivedTextColour());
+        if (adapter != null) {
+            adapter.setBubbleColours(data.getSentBubbleColourArgb(), data.getReceivedBubbleColourArgb(), data.getSentTextColourArgb(), data.getReceivedTextColourArgb());
+            adapterThemed = true;
         }
     }
 
-    private int getContrastingHintColor(String backgroundColor) {
-        int bgColor = Color.parseColor(backgroundColor);
-        double luminance = ColorUtils.calculateLuminance(bgColor);
+    private int getContrastingHintColor(int backgroundColor) {
+        double luminance = ColorUtils.calculateLuminance(backgroundColor);
 
         if (luminance > 0.5) {
-            return Color.parseColor("#666666"); // Dark hint for light backgrounds
+            return 0xFF666666; // Dark hint for light backgrounds
         } else {
-            return Color.parseColor("#CCCCCC"); // Light hint for dark backgrounds
+            return 0xFFCCCCCC; // Light hint for dark backgrounds
         }
     }
 
-}
+}
\ No newline at end of file
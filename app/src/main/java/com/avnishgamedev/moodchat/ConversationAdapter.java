@@ -1,8 +1,6 @@
 package com.avnishgamedev.moodchat;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.util.Base64;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -15,10 +13,15 @@ import androidx.annotation.NonNull;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 public class ConversationAdapter extends RecyclerView.Adapter<ConversationAdapter.ViewHolder> {
+    private static final String TAG = "ConversationAdapter";
+
     static class ViewHolder extends RecyclerView.ViewHolder {
         ImageView ivProfilePic;
         TextView tvName;
@@ -27,6 +30,7 @@ public class ConversationAdapter extends RecyclerView.Adapter<ConversationAdapte
         ImageView ivMessageStatus;
         View onlineIndicator;
         LinearLayout llLoading;
+        String boundUsername;
         public ViewHolder(View itemView) {
             super(itemView);
 
@@ -42,6 +46,7 @@ public class ConversationAdapter extends RecyclerView.Adapter<ConversationAdapte
 
     private List<Conversation> conversations;
     private AdapterView.OnItemClickListener listener;
+    private final Set<String> repairedSummaries = new HashSet<>();
     public ConversationAdapter(List<Conversation> conversations, AdapterView.OnItemClickListener listener) {
         this.conversations = conversations;
         this.listener = listener;
@@ -57,41 +62,87 @@ public class ConversationAdapter extends RecyclerView.Adapter<ConversationAdapte
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
         Conversation conversation = conversations.get(position);
-        holder.itemView.setOnClickListener(v -> listener.onItemClick(null, v, position, 0));
+        // Rows move with incremental updates, so resolve the position at click time
+        holder.itemView.setOnClickListener(v -> listener.onItemClick(null, v, holder.getBindingAdapterPosition(), 0));
+
+        String username = ConversationHelpers.getOtherUsername(conversation.getId(), UserManager.getInstance().getUser().getUsername());
+        holder.boundUsername = username;
+
+        // The conversation document carries what the row needs. Presence isn't on it, so it only
+        // shows when the user is already cached, e.g. after opening the conversation
+        MemberSummary summary = conversation.getMemberSummary(username);
+        User cached = UserRepository.getInstance().getCached(username);
+        if (summary != null) {
+            bindUser(holder, conversation, cached != null ? cached : summary.toUser(username));
+            return;
+        }
+
+        // Cached users bind synchronously, so scrolling back doesn't flash the loading state
+        if (cached != null) {
+            bindUser(holder, conversation, cached);
+            return;
+        }
 
         holder.llLoading.setVisibility(View.VISIBLE);
         holder.onlineIndicator.setVisibility(View.GONE);
-        ConversationHelpers.getUserByUsername(ConversationHelpers.getOtherUsername(conversation.getId(), UserManager.getInstance().getUser().getUsername()))
-                .addOnSuccessListener(user -> {
-                    holder.tvName.setText(user.getName());
-                    holder.tvLastMessage.setText(conversation.getLastMessage());
-                    holder.tvLastMessageTime.setText(new SimpleDateFormat("hh:mm a", Locale.getDefault()).format(conversation.getLastMessageTimestamp()));
-                    holder.ivProfilePic.setImageBitmap(base64ToBitmap(user.getProfilePicture()));
-
-                     if (user.isOnline()) {
-                         holder.onlineIndicator.setVisibility(View.VISIBLE);
-                     }
-                })
-                .addOnFailureListener(e -> {
-                    e.printStackTrace();
-                    holder.tvName.setText("Unknown");
-                })
+        UserRepository.getInstance().get(username)
                 .addOnCompleteListener(task -> {
-                    holder.llLoading.setVisibility(View.GONE);
+                    // The holder has been rebound to another conversation meanwhile
+                    if (!username.equals(holder.boundUsername)) return;
+
+                    if (task.isSuccessful()) {
+                        bindUser(holder, conversation, task.getResult());
+                        repairSummary(conversation, task.getResult());
+                    } else {
+                        Log.e(TAG, "Failed to load user " + username, task.getException());
+                        holder.tvName.setText("Unknown");
+                        holder.llLoading.setVisibility(View.GONE);
+                    }
                 });
     }
 
-    @Override
-    public int getItemCount() {
-        return conversations.size();
+    private void bindUser(ViewHolder holder, Conversation conversation, User user) {
+        holder.tvName.setText(user.getName());
+        holder.tvLastMessage.setText(conversation.getLastMessage());
+        holder.tvLastMessageTime.setText(new SimpleDateFormat("hh:mm a", Locale.getDefault()).format(conversation.getLastMessageTimestamp()));
+        AvatarLoader.getInstance().load(holder.ivProfilePic, user, R.drawable.ic_person);
+        bindPresence(holder, user);
+        holder.llLoading.setVisibility(View.GONE);
+    }
+
+    private void bindPresence(ViewHolder holder, User user) {
+        holder.onlineIndicator.setVisibility(user.isOnline() ? View.VISIBLE : View.GONE);
+    }
+
+    // Conversations created before summaries existed get one written by the first reader
+    private void repairSummary(Conversation conversation, User user) {
+        if (MemberSummary.of(user) == null || !repairedSummaries.add(conversation.getId())) return;
+        ConversationHelpers.refreshMemberSummary(conversation.getId(), user)
+                .addOnFailureListener(e -> Log.w(TAG, "Failed to write member summary for " + conversation.getId(), e));
     }
 
-    // Helpers
-    public static Bitmap base64ToBitmap(String base64Str) {
-        if (base64Str == null) {
-            return null;
+    // Requests the other members of rows [from, to) without a summary, so their binds find the users cached
+    public void prefetchUsers(int from, int to) {
+        String myUsername = UserManager.getInstance().getUser().getUsername();
+        List<String> usernames = new ArrayList<>();
+        for (int i = Math.max(0, from); i < Math.min(to, conversations.size()); i++) {
+            String username = ConversationHelpers.getOtherUsername(conversations.get(i).getId(), myUsername);
+            if (conversations.get(i).getMemberSummary(username) == null) {
+                usernames.add(username);
+            }
         }
-        byte[] decodedBytes = Base64.decode(base64Str, Base64.DEFAULT);
-        return BitmapFactory.decodeByteArray(decodedBytes, 0, decodedBytes.length);
+        if (usernames.isEmpty()) return;
+        UserRepository.getInstance().prefetch(usernames);
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        holder.boundUsername = null;
+        AvatarLoader.getInstance().cancel(holder.ivProfilePic);
+    }
+
+    @Override
+    public int getItemCount() {
+        return conversations.size();
     }
 }
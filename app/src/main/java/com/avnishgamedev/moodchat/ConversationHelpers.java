@@ -10,26 +10,40 @@ import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.EventListener;
+import com.google.firebase.firestore.FieldPath;
 import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.ListenerRegistration;
 import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
 import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.Source;
 import com.google.firebase.firestore.WriteBatch;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class ConversationHelpers {
     public static final String TAG = "ConversationHelpers";
 
+    // Firestore's limit on values in a single whereIn filter
+    public static final int MAX_IN_VALUES = 30;
+    public static final int CONVERSATIONS_PAGE_SIZE = 30;
+    // Conversations read and rewritten per step of a summary fan-out, within Firestore's 500 writes per batch
+    private static final int FANOUT_PAGE_SIZE = 200;
+
     public static Task<Void> createConversation(
-            String currentUsername,
-            String otherUsername
+            User currentUser,
+            User otherUser
     ) {
         FirebaseFirestore db = FirebaseFirestore.getInstance();
 
+        String currentUsername = currentUser.getUsername();
+        String otherUsername = otherUser.getUsername();
         String convId = conversationIdFor(currentUsername, otherUsername);
         DocumentReference convRef = conversationRef(db, convId);
 
@@ -39,6 +53,10 @@ public class ConversationHelpers {
                 Timestamp.now().toDate(),
                 null
         );
+        Map<String, MemberSummary> summaries = new HashMap<>();
+        putSummary(summaries, currentUser);
+        putSummary(summaries, otherUser);
+        conv.setMemberSummaries(summaries);
 
         return convRef.set(conv, SetOptions.merge());
     }
@@ -51,34 +69,103 @@ public class ConversationHelpers {
     ) {
         FirebaseFirestore db = FirebaseFirestore.getInstance();
 
-        DocumentReference convRef = conversationRef(db, conversationId);
         DocumentReference msgRef = messagesRef(db, conversationId).document();
 
         Message msg = new Message(text, senderUsername, senderName, Timestamp.now(), "sent");
-        msg.setStatus("sent");
+        msg.setId(msgRef.getId());
+        WriteBatch batch = messageBatch(db, conversationId, msg);
 
-        WriteBatch batch = db.batch();
-        batch.set(msgRef, msg);
+        // Kept locally as pending until the server confirms, SyncEngine settles it otherwise
+        LocalStore store = LocalStore.getInstance();
+        if (store == null) {
+            return batch.commit();
+        }
+        return Tasks.call(AppExecutors.io(), () -> {
+            store.putPendingMessage(conversationId, msg);
+            return null;
+        }).continueWithTask(stored -> batch.commit())
+                .onSuccessTask(AppExecutors.io(), unused -> {
+                    store.clearPending(msg.getId());
+                    return Tasks.forResult(null);
+                });
+    }
 
-        Map<String, Object> convUpdate = new HashMap<>();
-        convUpdate.put("lastMessage", text);
-        convUpdate.put("updatedAt", FieldValue.serverTimestamp());
-        batch.update(convRef, convUpdate);
+    // Resolves to whether a message stored locally as pending has reached the server. Firestore
+    // keeps unacknowledged writes queued across restarts, so the message is only written again
+    // when that queue never had it, e.g. the app died between storing it and committing
+    public static Task<Boolean> settlePendingMessage(String conversationId, Message message) {
+        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        DocumentReference msgRef = messagesRef(db, conversationId).document(message.getId());
+        return msgRef.get(Source.SERVER).continueWithTask(server -> {
+            if (!server.isSuccessful()) {
+                // Offline, try again on the next reconcile
+                return Tasks.forResult(false);
+            }
+            if (server.getResult().exists()) {
+                return Tasks.forResult(true);
+            }
+            return msgRef.get(Source.CACHE).continueWithTask(cached -> {
+                if (cached.isSuccessful() && cached.getResult().exists()) {
+                    // Still in the SDK's write queue
+                    return Tasks.forResult(false);
+                }
+                return messageBatch(db, conversationId, message).commit().continueWith(commit -> commit.isSuccessful());
+            });
+        });
+    }
 
+    // Marks up to 500 messages as delivered in a single batch
+    public static Task<Void> markDelivered(String conversationId, List<String> messageIds) {
+        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        WriteBatch batch = db.batch();
+        for (String messageId : messageIds) {
+            batch.update(messagesRef(db, conversationId).document(messageId), "status", "delivered");
+        }
         return batch.commit();
     }
 
-    public static Task<Void> updateMessageStatus(
+    // The ids among messageIds whose documents still exist, read in whereIn chunks
+    public static Task<List<String>> getExistingMessageIds(String conversationId, List<String> messageIds) {
+        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        List<Task<QuerySnapshot>> reads = new ArrayList<>();
+        for (int from = 0; from < messageIds.size(); from += MAX_IN_VALUES) {
+            List<String> chunk = messageIds.subList(from, Math.min(messageIds.size(), from + MAX_IN_VALUES));
+            reads.add(messagesRef(db, conversationId).whereIn(FieldPath.documentId(), chunk).get(Source.SERVER));
+        }
+        return Tasks.whenAllSuccess(reads).onSuccessTask(snaps -> {
+            List<String> existing = new ArrayList<>();
+            for (Object snap : snaps) {
+                for (DocumentSnapshot doc : ((QuerySnapshot) snap).getDocuments()) {
+                    existing.add(doc.getId());
+                }
+            }
+            return Tasks.forResult(existing);
+        });
+    }
+
+    // Advances one member's read watermark, message statuses are derived from it instead of written per message
+    public static Task<Void> markReadUpTo(
             String conversationId,
-            String messageId,
-            String newStatus
+            String username,
+            Date readUpTo
     ) {
         FirebaseFirestore db = FirebaseFirestore.getInstance();
-        return messagesRef(db, conversationId)
-                .document(messageId)
-                .update("status", newStatus);
+        return conversationRef(db, conversationId).update(FieldPath.of("readUpTo", username), readUpTo);
     }
 
+    // Rewrites user's summary on all of their conversations, one page and one batch at a time
+    public static Task<Void> updateMemberSummaries(User user) {
+        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        return updateMemberSummariesAfter(db, user.getUsername(), summaryValue(user), null);
+    }
+
+    // Repairs one conversation's summary of user, e.g. when a reader notices it is missing or stale
+    public static Task<Void> refreshMemberSummary(String conversationId, User user) {
+        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        return conversationRef(db, conversationId).update(FieldPath.of("memberSummaries", user.getUsername()), summaryValue(user));
+    }
+
+    // Always queries Firestore, go through UserRepository to share cached users
     public static Task<User> getUserByUsername(String username) {
         FirebaseFirestore db = FirebaseFirestore.getInstance();
         return db.collection("users").whereEqualTo("username", username).get().continueWithTask(task -> {
@@ -94,11 +181,21 @@ public class ConversationHelpers {
         });
     }
 
+    // Users for up to MAX_IN_VALUES usernames in one query, missing usernames are left out
+    public static Task<List<User>> getUsersByUsernames(List<String> usernames) {
+        if (usernames.size() > MAX_IN_VALUES) {
+            return Tasks.forException(new IllegalArgumentException("At most " + MAX_IN_VALUES + " usernames per query"));
+        }
+        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        return db.collection("users").whereIn("username", usernames).get()
+                .onSuccessTask(snap -> Tasks.forResult(snap.toObjects(User.class)));
+    }
+
     public static Task<ListenerRegistration> bindUserByUsername(String username, EventListener<DocumentSnapshot> userListener) {
         FirebaseFirestore db = FirebaseFirestore.getInstance();
         TaskCompletionSource<ListenerRegistration> res = new TaskCompletionSource<>();
 
-        getUserByUsername(username)
+        UserRepository.getInstance().get(username)
                 .addOnSuccessListener(user -> {
                     res.setResult(db.collection("users").document(user.getDocumentId()).addSnapshotListener(userListener));
                 })
@@ -116,8 +213,7 @@ public class ConversationHelpers {
 
         // Directly listen to the conversation document since we already have the ID
         try {
-            ListenerRegistration registration = db.collection("conversations")
-                    .document(conversationId)
+            ListenerRegistration registration = conversationRef(db, conversationId)
                     .addSnapshotListener(conversationListener);
             res.setResult(registration);
         } catch (Exception e) {
@@ -138,11 +234,34 @@ public class ConversationHelpers {
         return usernames[0].equals(currentUsername) ? usernames[1] : usernames[0];
     }
 
+    // Most recent first, the document id breaks ties so pages never skip or repeat a conversation
     public static Query getConversationsQuery(String username) {
         return FirebaseFirestore.getInstance()
                 .collection("conversation")
                 .whereArrayContains("members", username)
-                .orderBy("lastMessageTimestamp", Query.Direction.DESCENDING);
+                .orderBy("lastMessageTimestamp", Query.Direction.DESCENDING)
+                .orderBy(FieldPath.documentId(), Query.Direction.DESCENDING);
+    }
+
+    // The most recent page, the only part of the list that is listened to
+    public static Query getConversationsPageQuery(String username) {
+        return getConversationsQuery(username).limit(CONVERSATIONS_PAGE_SIZE);
+    }
+
+    // The page of conversations less recent than cursor
+    public static Task<QuerySnapshot> getConversationsAfter(String username, Conversation cursor) {
+        return getConversationsQuery(username)
+                .startAfter(cursor.getLastMessageTimestamp(), cursor.getId())
+                .limit(CONVERSATIONS_PAGE_SIZE)
+                .get();
+    }
+
+    // The page of conversations more recent than cursor, used to refill rows dropped from the window
+    public static Task<QuerySnapshot> getConversationsBefore(String username, Conversation cursor) {
+        return getConversationsQuery(username)
+                .endBefore(cursor.getLastMessageTimestamp(), cursor.getId())
+                .limitToLast(CONVERSATIONS_PAGE_SIZE)
+                .get();
     }
 
     public static Query getMessagesQuery(String conversationId) {
@@ -153,6 +272,44 @@ public class ConversationHelpers {
                 .orderBy("sentAt", Query.Direction.ASCENDING);
     }
 
+    // Keyset order for paging, the document id breaks ties between messages sent in the same instant
+    public static Query getMessagesPageQuery(String conversationId) {
+        return getMessagesQuery(conversationId).orderBy(FieldPath.documentId(), Query.Direction.ASCENDING);
+    }
+
+    // Newest pageSize messages, in ascending order
+    public static Task<QuerySnapshot> getLatestMessages(String conversationId, int pageSize) {
+        return getMessagesPageQuery(conversationId).limitToLast(pageSize).get();
+    }
+
+    // The pageSize messages just before the cursor, in ascending order
+    public static Task<QuerySnapshot> getMessagesBefore(String conversationId, Message cursor, int pageSize) {
+        return getMessagesPageQuery(conversationId)
+                .endBefore(cursor.getSentAt(), cursor.getId())
+                .limitToLast(pageSize)
+                .get();
+    }
+
+    // The pageSize messages just after the cursor, in ascending order
+    public static Task<QuerySnapshot> getMessagesAfter(String conversationId, Message cursor, int pageSize) {
+        return getMessagesPageQuery(conversationId)
+                .startAfter(cursor.getSentAt(), cursor.getId())
+                .limit(pageSize)
+                .get();
+    }
+
+    // Live tail from the cursor onwards, the cursor itself is included so its status updates still arrive
+    public static Query getMessagesFromQuery(String conversationId, Message cursor) {
+        Query query = getMessagesPageQuery(conversationId);
+        return cursor != null ? query.startAt(cursor.getSentAt(), cursor.getId()) : query;
+    }
+
+    // Same ordering as getMessagesPageQuery
+    public static int compareMessages(Message a, Message b) {
+        int bySentAt = Long.compare(a.getSentAtNanos(), b.getSentAtNanos());
+        return bySentAt != 0 ? bySentAt : a.getId().compareTo(b.getId());
+    }
+
     // ----------------- Helpers ----------------
 
     // Deterministic conversation id for 1-to-1 (prevents duplicates)
@@ -167,7 +324,57 @@ public class ConversationHelpers {
         return conversationRef(db, conversationId).collection("messages");
     }
 
-    private static class UserNotFoundException extends Exception {
+    // Writes the message and moves its conversation to the top of the list, in one commit
+    private static WriteBatch messageBatch(FirebaseFirestore db, String conversationId, Message msg) {
+        WriteBatch batch = db.batch();
+        batch.set(messagesRef(db, conversationId).document(msg.getId()), msg);
+
+        Map<String, Object> convUpdate = new HashMap<>();
+        convUpdate.put("lastMessage", msg.getMessage());
+        // The conversation list is ordered by this, so a new message moves its conversation to the top
+        convUpdate.put("lastMessageTimestamp", msg.getSentAt().toDate());
+        convUpdate.put("updatedAt", FieldValue.serverTimestamp());
+        batch.update(conversationRef(db, conversationId), convUpdate);
+        return batch;
+    }
+
+    private static Task<Void> updateMemberSummariesAfter(FirebaseFirestore db, String username, Object summary, DocumentSnapshot after) {
+        // The rewrite doesn't touch the ordering fields, so the cursor stays valid between pages
+        Query query = getConversationsQuery(username).limit(FANOUT_PAGE_SIZE);
+        if (after != null) {
+            query = query.startAfter(after);
+        }
+
+        FieldPath field = FieldPath.of("memberSummaries", username);
+        return query.get().onSuccessTask(snap -> {
+            if (snap.isEmpty()) {
+                return Tasks.forResult(null);
+            }
+            WriteBatch batch = db.batch();
+            for (DocumentSnapshot doc : snap.getDocuments()) {
+                batch.update(doc.getReference(), field, summary);
+            }
+            DocumentSnapshot last = snap.getDocuments().get(snap.size() - 1);
+            return batch.commit().onSuccessTask(unused -> snap.size() < FANOUT_PAGE_SIZE
+                    ? Tasks.forResult(null)
+                    : updateMemberSummariesAfter(db, username, summary, last));
+        });
+    }
+
+    private static void putSummary(Map<String, MemberSummary> summaries, User user) {
+        MemberSummary summary = MemberSummary.of(user);
+        if (summary != null) {
+            summaries.put(user.getUsername(), summary);
+        }
+    }
+
+    // Users who can't be summarised get any earlier summary removed, so readers load them in full
+    private static Object summaryValue(User user) {
+        MemberSummary summary = MemberSummary.of(user);
+        return summary != null ? summary : FieldValue.delete();
+    }
+
+    static class UserNotFoundException extends Exception {
         public UserNotFoundException() {
             super("User not found!");
         }
@@ -1,121 +1,251 @@
 package com.avnishgamedev.moodchat;
 
+import android.graphics.Color;
+import android.util.Log;
+
+import com.google.firebase.firestore.Exclude;
+
 import org.json.JSONObject;
 
 import java.io.Serializable;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Conversation colours as packed ARGB ints, parsed and validated once when the theme
+ * is created or read. Firestore stores them as a single palette list. The old
+ * per-colour hex strings are still read from older documents when the palette is
+ * absent, and still written so older app versions can show new themes.
+ */
 public class ConversationThemeData implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final String TAG = "ConversationThemeData";
+
+    // Palette slots
+    private static final int BACKGROUND = 0;
+    private static final int SURROUNDING = 1;
+    private static final int MESSAGE_BACKGROUND = 2;
+    private static final int MESSAGE_TEXT_COLOUR = 3;
+    private static final int SEND_BACKGROUND = 4;
+    private static final int SEND_ICON_TINT = 5;
+    private static final int SENT_BUBBLE_COLOUR = 6;
+    private static final int SENT_TEXT_COLOUR = 7;
+    private static final int RECEIVED_BUBBLE_COLOUR = 8;
+    private static final int RECEIVED_TEXT_COLOUR = 9;
+    private static final int PALETTE_SIZE = 10;
+
+    // Same order as the palette slots, also the legacy Firestore field names
+    private static final String[] AI_KEYS = {
+            "background", "surrounding", "messageBackground", "messageTextColour", "sendBackground",
+            "sendIconTint", "sentBubbleColour", "sentTextColour", "receivedBubbleColour", "receivedTextColour"
+    };
+
+    private final int[] colours = new int[PALETTE_SIZE];
+    // Set once every slot holds a real colour, from the palette or the legacy fields
+    private boolean complete = false;
+    private boolean hasPalette = false;
+    // Legacy hex strings as read, only used when the document has no palette
+    private final String[] legacy = new String[PALETTE_SIZE];
+    // Set after the legacy strings were parsed once, whether or not they were all valid
+    private boolean legacyResolved = false;
+
+    public ConversationThemeData() {}
+
+    public ConversationThemeData(int background, int surrounding, int messageBackground, int messageTextColour, int sendBackground, int sendIconTint, int sentBubbleColour, int sentTextColour, int receivedBubbleColour, int receivedTextColour) {
+        colours[BACKGROUND] = background;
+        colours[SURROUNDING] = surrounding;
+        colours[MESSAGE_BACKGROUND] = messageBackground;
+        colours[MESSAGE_TEXT_COLOUR] = messageTextColour;
+        colours[SEND_BACKGROUND] = sendBackground;
+        colours[SEND_ICON_TINT] = sendIconTint;
+        colours[SENT_BUBBLE_COLOUR] = sentBubbleColour;
+        colours[SENT_TEXT_COLOUR] = sentTextColour;
+        colours[RECEIVED_BUBBLE_COLOUR] = receivedBubbleColour;
+        colours[RECEIVED_TEXT_COLOUR] = receivedTextColour;
+        hasPalette = true;
+        complete = true;
+    }
+
+    // Firestore form, unsigned ARGB values in palette slot order
+    public List<Long> getPalette() {
+        if (!isComplete()) {
+            return null;
+        }
+        List<Long> palette = new ArrayList<>(PALETTE_SIZE);
+        for (int colour : colours) {
+            palette.add(colour & 0xFFFFFFFFL);
+        }
+        return palette;
+    }
 
-    private String background;
-    private String surrounding;
-    private String messageBackground;
-    private String messageTextColour;
-    private String sendBackground;
-    private String sendIconTint;
-    private String sentBubbleColour;
-    private String sentTextColour;
-    private String receivedBubbleColour;
-    private String receivedTextColour;
-
-    public ConversationThemeData() {
-    }
-
-    public ConversationThemeData(String background, String surrounding, String messageBackground, String messageTextColour, String sendBackground, String sendIconTint, String sentBubbleColour, String sentTextColour, String receivedBubbleColour, String receivedTextColour) {
-        this.background = background;
-        this.surrounding = surrounding;
-        this.messageBackground = messageBackground;
-        this.messageTextColour = messageTextColour;
-        this.sendBackground = sendBackground;
-        this.sendIconTint = sendIconTint;
-        this.sentBubbleColour = sentBubbleColour;
-        this.sentTextColour = sentTextColour;
-        this.receivedBubbleColour = receivedBubbleColour;
-        this.receivedTextColour = receivedTextColour;
+    public void setPalette(List<Long> palette) {
+        if (palette == null || palette.size() != PALETTE_SIZE || palette.contains(null)) {
+            Log.w(TAG, "Ignoring malformed palette: " + palette);
+            return;
+        }
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            colours[i] = (int) palette.get(i).longValue();
+        }
+        hasPalette = true;
+        complete = true;
     }
 
-    public String getBackground() {
-        return background;
+    // Whether every colour is known, themes read from incomplete documents shouldn't be applied
+    @Exclude
+    public boolean isComplete() {
+        if (!complete && !hasPalette && !legacyResolved) {
+            resolveLegacy();
+        }
+        return complete;
+    }
+
+    @Exclude
+    public int getBackgroundArgb() {
+        return colours[BACKGROUND];
+    }
+
+    @Exclude
+    public int getSurroundingArgb() {
+        return colours[SURROUNDING];
+    }
+
+    @Exclude
+    public int getMessageBackgroundArgb() {
+        return colours[MESSAGE_BACKGROUND];
+    }
+
+    @Exclude
+    public int getMessageTextColourArgb() {
+        return colours[MESSAGE_TEXT_COLOUR];
     }
 
+    @Exclude
+    public int getSendBackgroundArgb() {
+        return colours[SEND_BACKGROUND];
+    }
+
+    @Exclude
+    public int getSendIconTintArgb() {
+        return colours[SEND_ICON_TINT];
+    }
+
+    @Exclude
+    public int getSentBubbleColourArgb() {
+        return colours[SENT_BUBBLE_COLOUR];
+    }
+
+    @Exclude
+    public int getSentTextColourArgb() {
+        return colours[SENT_TEXT_COLOUR];
+    }
+
+    @Exclude
+    public int getReceivedBubbleColourArgb() {
+        return colours[RECEIVED_BUBBLE_COLOUR];
+    }
+
+    @Exclude
+    public int getReceivedTextColourArgb() {
+        return colours[RECEIVED_TEXT_COLOUR];
+    }
+
+    // Legacy hex string fields. Firestore only calls a setter for a property it also has a getter for
+    @Deprecated
+    public String getBackground() {
+        return getLegacy(BACKGROUND);
+    }
+    @Deprecated
     public void setBackground(String background) {
-        this.background = background;
+        setLegacy(BACKGROUND, background);
     }
 
+    @Deprecated
     public String getSurrounding() {
-        return surrounding;
+        return getLegacy(SURROUNDING);
     }
-
+    @Deprecated
     public void setSurrounding(String surrounding) {
-        this.surrounding = surrounding;
+        setLegacy(SURROUNDING, surrounding);
     }
 
-
+    @Deprecated
     public String getMessageBackground() {
-        return messageBackground;
+        return getLegacy(MESSAGE_BACKGROUND);
     }
-
+    @Deprecated
     public void setMessageBackground(String messageBackground) {
-        this.messageBackground = messageBackground;
+        setLegacy(MESSAGE_BACKGROUND, messageBackground);
     }
 
+    @Deprecated
     public String getMessageTextColour() {
-        return messageTextColour;
+        return getLegacy(MESSAGE_TEXT_COLOUR);
     }
-
+    @Deprecated
     public void setMessageTextColour(String messageTextColour) {
-        this.messageTextColour = messageTextColour;
+        setLegacy(MESSAGE_TEXT_COLOUR, messageTextColour);
     }
 
+    @Deprecated
     public String getSendBackground() {
-        return sendBackground;
+        return getLegacy(SEND_BACKGROUND);
     }
-
+    @Deprecated
     public void setSendBackground(String sendBackground) {
-        this.sendBackground = sendBackground;
+        setLegacy(SEND_BACKGROUND, sendBackground);
     }
 
-
+    @Deprecated
     public String getSendIconTint() {
-        return sendIconTint;
+        return getLegacy(SEND_ICON_TINT);
     }
-
+    @Deprecated
     public void setSendIconTint(String sendIconTint) {
-        this.sendIconTint = sendIconTint;
+        setLegacy(SEND_ICON_TINT, sendIconTint);
     }
 
-
+    @Deprecated
     public String getSentBubbleColour() {
-        return sentBubbleColour;
+        return getLegacy(SENT_BUBBLE_COLOUR);
     }
-
+    @Deprecated
     public void setSentBubbleColour(String sentBubbleColour) {
-        this.sentBubbleColour = sentBubbleColour;
+        setLegacy(SENT_BUBBLE_COLOUR, sentBubbleColour);
     }
 
+    @Deprecated
     public String getSentTextColour() {
-        return sentTextColour;
+        return getLegacy(SENT_TEXT_COLOUR);
     }
-
+    @Deprecated
     public void setSentTextColour(String sentTextColour) {
-        this.sentTextColour = sentTextColour;
+        setLegacy(SENT_TEXT_COLOUR, sentTextColour);
     }
 
+    @Deprecated
     public String getReceivedBubbleColour() {
-        return receivedBubbleColour;
+        return getLegacy(RECEIVED_BUBBLE_COLOUR);
     }
-
+    @Deprecated
     public void setReceivedBubbleColour(String receivedBubbleColour) {
-        this.receivedBubbleColour = receivedBubbleColour;
+        setLegacy(RECEIVED_BUBBLE_COLOUR, receivedBubbleColour);
     }
 
+    @Deprecated
     public String getReceivedTextColour() {
-        return receivedTextColour;
+        return getLegacy(RECEIVED_TEXT_COLOUR);
     }
-
+    @Deprecated
     public void setReceivedTextColour(String receivedTextColour) {
-        this.receivedTextColour = receivedTextColour;
+        setLegacy(RECEIVED_TEXT_COLOUR, receivedTextColour);
+    }
+
+    public boolean samePalette(ConversationThemeData other) {
+        return other != null && isComplete() && other.isComplete() && Arrays.equals(colours, other.colours);
     }
 
+    // Returns null if the response isn't JSON, or any colour in it is missing or invalid
     public static ConversationThemeData parseThemeDataFromAI(String aiResponse) {
         try {
             String cleanJson = aiResponse
@@ -125,16 +255,15 @@ public class ConversationThemeData implements Serializable {
 
             JSONObject json = new JSONObject(cleanJson);
             ConversationThemeData data = new ConversationThemeData();
-            data.background = json.optString("background", "#000000");
-            data.surrounding = json.optString("surrounding", "#000000");
-            data.messageBackground = json.optString("messageBackground", "#000000");
-            data.messageTextColour = json.optString("messageTextColour", "#000000");
-            data.sendBackground = json.optString("sendBackground", "#000000");
-            data.sendIconTint = json.optString("sendIconTint", "#000000");
-            data.sentBubbleColour = json.optString("sentBubbleColour", "#000000");
-            data.sentTextColour = json.optString("sentTextColour", "#000000");
-            data.receivedBubbleColour = json.optString("receivedBubbleColour", "#000000");
-            data.receivedTextColour = json.optString("receivedTextColour", "#000000");
+            for (int i = 0; i < PALETTE_SIZE; i++) {
+                if (!json.has(AI_KEYS[i])) {
+                    Log.w(TAG, "AI theme is missing " + AI_KEYS[i]);
+                    return null;
+                }
+                data.colours[i] = Color.parseColor(json.getString(AI_KEYS[i]));
+            }
+            data.hasPalette = true;
+            data.complete = true;
             return data;
         } catch (Exception e) {
             e.printStackTrace();
@@ -142,4 +271,30 @@ public class ConversationThemeData implements Serializable {
         }
     }
 
+    // Helpers
+    private String getLegacy(int slot) {
+        return isComplete() ? String.format("#%08X", colours[slot]) : legacy[slot];
+    }
+
+    private void setLegacy(int slot, String hex) {
+        legacy[slot] = hex;
+        // Firestore sets the fields one by one, so parse again with the new value
+        legacyResolved = false;
+    }
+
+    private void resolveLegacy() {
+        legacyResolved = true;
+        int[] parsed = new int[PALETTE_SIZE];
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            if (legacy[i] == null) return;
+            try {
+                parsed[i] = Color.parseColor(legacy[i]);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Invalid colour " + legacy[i] + " for " + AI_KEYS[i]);
+                return;
+            }
+        }
+        System.arraycopy(parsed, 0, colours, 0, PALETTE_SIZE);
+        complete = true;
+    }
 }
@@ -0,0 +1,191 @@
+package com.avnishgamedev.moodchat;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Collects "delivered" acknowledgements per conversation for a short window and
+ * commits them as one WriteBatch, so a reconnect with a backlog costs a handful of
+ * commits instead of one write per message. Must be used from the thread its
+ * scheduler runs on, the main thread in the app.
+ */
+public class DeliveryAckCoalescer {
+    private static final String TAG = "DeliveryAckCoalescer";
+
+    static final long WINDOW_MS = 1500;
+    // Firestore rejects batches with more than 500 writes
+    static final int MAX_BATCH_OPS = 500;
+    static final int MAX_ATTEMPTS = 3;
+    static final long RETRY_BASE_MS = 2000;
+
+    // Writes one batch of acks
+    interface Committer {
+        Task<Void> commit(String conversationId, List<String> messageIds);
+        // The ids among messageIds whose documents still exist
+        Task<List<String>> existing(String conversationId, List<String> messageIds);
+    }
+
+    // Runs the window and retry timers, and commit callbacks
+    interface Scheduler {
+        void postDelayed(Runnable task, long delayMs);
+        void cancel(Runnable task);
+    }
+
+    private final Committer committer;
+    private final Scheduler scheduler;
+    // Runs commit callbacks through the scheduler, on the thread the coalescer is used from
+    private final Executor callbacks;
+
+    // conversation id -> message ids waiting for the window to close
+    private final Map<String, Set<String>> pending = new HashMap<>();
+    private final Map<String, Runnable> scheduled = new HashMap<>();
+
+    // Metrics
+    private long acknowledged = 0;
+    private long commits = 0;
+    private long failedCommits = 0;
+    // Acks that reached the server, the commits that carried them, and acks given up on
+    private long delivered = 0;
+    private long deliveredCommits = 0;
+    private long dropped = 0;
+
+    public DeliveryAckCoalescer() {
+        this(new Committer() {
+            @Override
+            public Task<Void> commit(String conversationId, List<String> messageIds) {
+                return ConversationHelpers.markDelivered(conversationId, messageIds);
+            }
+
+            @Override
+            public Task<List<String>> existing(String conversationId, List<String> messageIds) {
+                return ConversationHelpers.getExistingMessageIds(conversationId, messageIds);
+            }
+        }, new Scheduler() {
+            @Override
+            public void postDelayed(Runnable task, long delayMs) {
+                AppExecutors.mainHandler().postDelayed(task, delayMs);
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                AppExecutors.mainHandler().removeCallbacks(task);
+            }
+        });
+    }
+
+    DeliveryAckCoalescer(Committer committer, Scheduler scheduler) {
+        this.committer = committer;
+        this.scheduler = scheduler;
+        this.callbacks = runnable -> scheduler.postDelayed(runnable, 0);
+    }
+
+    public void acknowledge(String conversationId, String messageId) {
+        Set<String> ids = pending.get(conversationId);
+        if (ids == null) {
+            ids = new LinkedHashSet<>();
+            pending.put(conversationId, ids);
+        }
+        if (!ids.add(messageId)) return;
+        acknowledged++;
+
+        if (!scheduled.containsKey(conversationId)) {
+            Runnable flush = () -> flush(conversationId);
+            scheduled.put(conversationId, flush);
+            scheduler.postDelayed(flush, WINDOW_MS);
+        }
+    }
+
+    // Commits everything still waiting, e.g. when the service is stopping
+    public void flushAll() {
+        for (String conversationId : new ArrayList<>(pending.keySet())) {
+            flush(conversationId);
+        }
+    }
+
+    public void logStats() {
+        Log.d(TAG, "acks: " + acknowledged + ", delivered: " + delivered + ", dropped: " + dropped
+                + ", commits: " + commits + ", failed commits: " + failedCommits + ", writes saved: " + getWritesSaved());
+    }
+
+    // Per-message writes avoided by batching, counting only acks that were committed
+    long getWritesSaved() {
+        return delivered - deliveredCommits;
+    }
+
+    // Helpers
+    private void flush(String conversationId) {
+        Runnable flush = scheduled.remove(conversationId);
+        if (flush != null) {
+            scheduler.cancel(flush);
+        }
+
+        Set<String> ids = pending.remove(conversationId);
+        if (ids == null || ids.isEmpty()) return;
+
+        for (List<String> chunk : chunk(new ArrayList<>(ids), MAX_BATCH_OPS)) {
+            commit(conversationId, chunk, 1);
+        }
+    }
+
+    // Consecutive slices of at most size items
+    static <T> List<List<T>> chunk(List<T> items, int size) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int from = 0; from < items.size(); from += size) {
+            chunks.add(items.subList(from, Math.min(items.size(), from + size)));
+        }
+        return chunks;
+    }
+
+    private void commit(String conversationId, List<String> messageIds, int attempt) {
+        commits++;
+        committer.commit(conversationId, messageIds).addOnCompleteListener(callbacks, task -> {
+            if (task.isSuccessful()) {
+                delivered += messageIds.size();
+                deliveredCommits++;
+                return;
+            }
+
+            failedCommits++;
+            Exception e = task.getException();
+            if (isNotFound(e) && attempt < MAX_ATTEMPTS) {
+                // One deleted message fails the whole batch, so ack the ones that are still there
+                committer.existing(conversationId, messageIds).addOnCompleteListener(callbacks, existing -> {
+                    if (!existing.isSuccessful()) {
+                        retryOrGiveUp(conversationId, messageIds, attempt, existing.getException());
+                    } else if (!existing.getResult().isEmpty()) {
+                        commit(conversationId, existing.getResult(), attempt + 1);
+                    }
+                });
+                return;
+            }
+            retryOrGiveUp(conversationId, messageIds, attempt, e);
+        });
+    }
+
+    private void retryOrGiveUp(String conversationId, List<String> messageIds, int attempt, Exception e) {
+        if (attempt >= MAX_ATTEMPTS) {
+            dropped += messageIds.size();
+            Log.e(TAG, "Giving up on " + messageIds.size() + " acks for " + conversationId, e);
+            return;
+        }
+        Log.w(TAG, "Ack commit failed for " + conversationId + ", retrying", e);
+        scheduler.postDelayed(
+                () -> commit(conversationId, messageIds, attempt + 1),
+                RETRY_BASE_MS << (attempt - 1));
+    }
+
+    private static boolean isNotFound(Exception e) {
+        return e instanceof FirebaseFirestoreException
+                && ((FirebaseFirestoreException) e).getCode() == FirebaseFirestoreException.Code.NOT_FOUND;
+    }
+}
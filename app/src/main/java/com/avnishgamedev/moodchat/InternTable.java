@@ -0,0 +1,51 @@
+package com.avnishgamedev.moodchat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide table of distinct strings, each mapped to a small index. Lets a value
+ * that only ever takes a handful of values (a sender, a status) be stored per message
+ * as a short or a byte instead of its own String. Entries are never removed, so the
+ * capacity bounds what the table holds for the life of the process; callers keep
+ * values that don't fit as plain Strings.
+ */
+final class InternTable {
+    // Returned by intern once the table is full
+    static final int FULL = -2;
+
+    private final int capacity;
+    private final Map<String, Integer> indices = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+
+    InternTable(int capacity, String... seed) {
+        this.capacity = capacity;
+        for (String value : seed) {
+            intern(value);
+        }
+    }
+
+    // Index of value, adding it if it's new, or FULL. null is never stored and maps to -1
+    synchronized int intern(String value) {
+        if (value == null) {
+            return -1;
+        }
+        Integer index = indices.get(value);
+        if (index != null) {
+            return index;
+        }
+        if (values.size() == capacity) {
+            return FULL;
+        }
+        int added = values.size();
+        values.add(value);
+        indices.put(value, added);
+        return added;
+    }
+
+    synchronized String get(int index) {
+        return index < 0 ? null : values.get(index);
+    }
+}
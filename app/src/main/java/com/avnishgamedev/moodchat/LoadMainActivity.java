@@ -1,11 +1,12 @@
 package com.avnishgamedev.moodchat;
 
+import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
 import android.net.Uri;
 import android.os.Bundle;
-import android.util.Base64;
 import android.util.Log;
 import android.widget.Button;
 import android.widget.Toast;
@@ -25,16 +26,18 @@ import com.google.firebase.Timestamp;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.firestore.FirebaseFirestore;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
 
 public class LoadMainActivity extends AppCompatActivity {
     private static final String TAG = "LoadMainActivity";
 
+    private static final long MAX_IMPORT_BYTES = 20L * 1024 * 1024;
+
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -49,19 +52,22 @@ public class LoadMainActivity extends AppCompatActivity {
                     if (e instanceof UserManager.UserDocumentDoesntExistException) {
                         // Assuming we signed in via Google, prompt for username
                         promptUsernameAndCheck().addOnSuccessListener(username -> {                                 // Get Username
-                            loadAndCompressImageToBase64(FirebaseAuth.getInstance().getCurrentUser().getPhotoUrl())       // Load Profile Picture
-                            .addOnSuccessListener(profilePic -> {
-                                UserManager.getInstance().createOrUpdateUserDocument(
-                                                new User(
-                                                        FirebaseAuth.getInstance().getCurrentUser().getEmail(),
-                                                        FirebaseAuth.getInstance().getCurrentUser().getDisplayName(),
-                                                        true,
-                                                        profilePic,
-                                                        username,
-                                                        Timestamp.now(),
-                                                        Timestamp.now()
-                                                )
-                                        ).addOnSuccessListener(aVoid -> {
+                            loadSquareImage(this, FirebaseAuth.getInstance().getCurrentUser().getPhotoUrl())      // Load Profile Picture
+                            .onSuccessTask(AvatarRendition::uploadAll)                                               // Upload its renditions
+                            .addOnSuccessListener(renditions -> {
+                                User newUser = new User(
+                                        FirebaseAuth.getInstance().getCurrentUser().getEmail(),
+                                        FirebaseAuth.getInstance().getCurrentUser().getDisplayName(),
+                                        true,
+                                        null,
+                                        username,
+                                        Timestamp.now(),
+                                        Timestamp.now()
+                                );
+                                newUser.setProfilePictureRenditions(renditions);
+                                newUser.setProfilePictureHash(renditions.get(AvatarRendition.LARGE.key));
+                                UserManager.getInstance().createOrUpdateUserDocument(newUser)
+                                        .addOnSuccessListener(aVoid -> {
                                             Log.d(TAG, "User document created successfully");
                                             startActivity(new Intent(LoadMainActivity.this, MainActivity.class));
                                             finish();
@@ -154,43 +160,64 @@ public class LoadMainActivity extends AppCompatActivity {
         });
     }
 
-    public static Task<String> loadAndCompressImageToBase64(Uri imageUri) {
-        return Tasks.call(Executors.newSingleThreadExecutor(), new Callable<String>() {
-            @Override
-            public String call() throws Exception {
-                // Open connection to the remote URL
-                URL url = new URL(imageUri.toString());
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                connection.setDoInput(true);
-                connection.setConnectTimeout(10000); // 10 seconds timeout
-                connection.setReadTimeout(15000);    // 15 seconds timeout
-                connection.connect();
-
-                // Get input stream from the connection
-                InputStream inputStream = connection.getInputStream();
-
-                // Decode the input stream to Bitmap
-                Bitmap originalBitmap = BitmapFactory.decodeStream(inputStream);
-                inputStream.close();
-                connection.disconnect();
-
-                if (originalBitmap == null) {
+    // Downloads the image to a temp file, then decodes it in two passes so peak memory
+    // is bounded by the target size rather than the size of the remote photo
+    public static Task<Bitmap> loadSquareImage(Context context, Uri imageUri) {
+        File cacheDir = context.getCacheDir();
+        return Tasks.call(AppExecutors.io(), () -> {
+            File tmp = File.createTempFile("import", ".img", cacheDir);
+            try {
+                download(imageUri, tmp);
+
+                // Pass 1: bounds only
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeFile(tmp.getPath(), options);
+                if (options.outWidth <= 0 || options.outHeight <= 0) {
                     throw new Exception("Failed to decode image from URI: " + imageUri);
                 }
 
-                // Compress bitmap to JPEG format
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                originalBitmap.compress(Bitmap.CompressFormat.JPEG, 80, byteArrayOutputStream);
-
-                // Clean up bitmap from memory
-                originalBitmap.recycle();
-
-                // Convert compressed bytes to Base64 string
-                byte[] compressedBytes = byteArrayOutputStream.toByteArray();
-                byteArrayOutputStream.close();
+                // Pass 2: sampled decode close to the largest rendition
+                int targetPx = AvatarRendition.LARGE.sizePx;
+                int shortSide = Math.min(options.outWidth, options.outHeight);
+                options.inJustDecodeBounds = false;
+                options.inSampleSize = 1;
+                while (shortSide / (options.inSampleSize * 2) >= targetPx) {
+                    options.inSampleSize *= 2;
+                }
+                Bitmap sampled = BitmapFactory.decodeFile(tmp.getPath(), options);
+                if (sampled == null) {
+                    throw new Exception("Failed to decode image from URI: " + imageUri);
+                }
 
-                return Base64.encodeToString(compressedBytes, Base64.DEFAULT);
+                // Renditions are square, crop around the centre
+                int size = Math.min(Math.min(sampled.getWidth(), sampled.getHeight()), targetPx);
+                return ThumbnailUtils.extractThumbnail(sampled, size, size, ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+            } finally {
+                tmp.delete();
             }
         });
     }
+
+    private static void download(Uri imageUri, File target) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(imageUri.toString()).openConnection();
+        connection.setDoInput(true);
+        connection.setConnectTimeout(10000); // 10 seconds timeout
+        connection.setReadTimeout(15000);    // 15 seconds timeout
+        try (InputStream in = connection.getInputStream();
+             OutputStream out = new FileOutputStream(target)) {
+            byte[] buffer = new byte[8 * 1024];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+                if (total > MAX_IMPORT_BYTES) {
+                    throw new Exception("Image too large: " + imageUri);
+                }
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
 }
@@ -0,0 +1,513 @@
+package com.avnishgamedev.moodchat;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import androidx.annotation.WorkerThread;
+
+import com.google.firebase.Timestamp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * On-device copy of conversations and messages, so screens can render from disk
+ * before Firestore answers. Messages keep their Firestore ids, which makes every
+ * write an idempotent upsert no matter which listener or sync delivered it.
+ * Messages sent while offline are stored with the pending flag until the server
+ * has them. Stored messages also feed a full-text index, so search works offline.
+ * All methods hit the disk and must run off the main thread.
+ */
+public class LocalStore extends SQLiteOpenHelper {
+    private static final String TAG = "LocalStore";
+
+    private static final String DB_NAME = "moodchat.db";
+    // Bump when Conversation or anything it holds changes shape, cached conversations are cleared on upgrade
+    private static final int DB_VERSION = 3;
+    // Default cap on stored message text, the search index grows in proportion to it
+    private static final long DEFAULT_SEARCH_BUDGET_BYTES = 8L * 1024 * 1024;
+    // How many message writes happen between budget checks
+    private static final int TRIM_INTERVAL = 200;
+    // Newest matches ranked per search
+    private static final int SEARCH_CANDIDATES = 500;
+    private static final String TEXT_BYTES = "IFNULL(LENGTH(message), 0) + IFNULL(LENGTH(sender_name), 0)";
+
+    private static volatile LocalStore instance;
+
+    private volatile long searchBudgetBytes = DEFAULT_SEARCH_BUDGET_BYTES;
+    private int writesSinceTrim = 0;
+
+    private LocalStore(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+    }
+
+    public static void init(Context context) {
+        if (instance == null) {
+            synchronized (LocalStore.class) {
+                if (instance == null) {
+                    instance = new LocalStore(context.getApplicationContext());
+                }
+            }
+        }
+    }
+
+    // Null until init has been called from App
+    public static LocalStore getInstance() {
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE messages ("
+                + "id TEXT PRIMARY KEY, "
+                + "conversation_id TEXT NOT NULL, "
+                + "sender_username TEXT, "
+                + "sender_name TEXT, "
+                + "message TEXT, "
+                // Microseconds, the precision Firestore keeps for timestamps
+                + "sent_at INTEGER NOT NULL, "
+                + "status TEXT, "
+                + "pending INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX messages_by_conversation ON messages (conversation_id, sent_at, id)");
+        db.execSQL("CREATE INDEX messages_pending ON messages (pending) WHERE pending = 1");
+
+        db.execSQL("CREATE TABLE conversations ("
+                + "id TEXT PRIMARY KEY, "
+                + "owner TEXT NOT NULL, "
+                + "last_message_timestamp INTEGER, "
+                + "data BLOB NOT NULL)");
+        db.execSQL("CREATE INDEX conversations_by_owner ON conversations (owner, last_message_timestamp)");
+
+        // Newest message the sync engine has pulled for each conversation
+        db.execSQL("CREATE TABLE sync_state ("
+                + "conversation_id TEXT PRIMARY KEY, "
+                + "sent_at INTEGER NOT NULL, "
+                + "message_id TEXT NOT NULL)");
+
+        createSearchIndex(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createSearchIndex(db);
+            db.execSQL("INSERT INTO message_search(message_search) VALUES('rebuild')");
+        }
+        if (oldVersion < 3) {
+            // Rows serialized before serialVersionUID was pinned can't be read, they refill from the server
+            db.execSQL("DELETE FROM conversations");
+        }
+    }
+
+    // FTS4 rather than FTS5, which the platform SQLite doesn't guarantee. The index reads its
+    // text from the messages table and triggers keep it in step with every write to it.
+    private static void createSearchIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE message_search USING fts4(content=\"messages\", message, sender_name)");
+        db.execSQL("CREATE TRIGGER messages_search_bu BEFORE UPDATE ON messages BEGIN "
+                + "INSERT INTO message_search(message_search, docid, message, sender_name) VALUES('delete', old.rowid, old.message, old.sender_name); END");
+        db.execSQL("CREATE TRIGGER messages_search_bd BEFORE DELETE ON messages BEGIN "
+                + "INSERT INTO message_search(message_search, docid, message, sender_name) VALUES('delete', old.rowid, old.message, old.sender_name); END");
+        db.execSQL("CREATE TRIGGER messages_search_au AFTER UPDATE ON messages BEGIN "
+                + "INSERT INTO message_search(docid, message, sender_name) VALUES(new.rowid, new.message, new.sender_name); END");
+        db.execSQL("CREATE TRIGGER messages_search_ai AFTER INSERT ON messages BEGIN "
+                + "INSERT INTO message_search(docid, message, sender_name) VALUES(new.rowid, new.message, new.sender_name); END");
+    }
+
+    // ----------------- Messages ----------------
+
+    // Upserts messages from the server, leaving the pending flag of local sends untouched
+    @WorkerThread
+    public void putMessages(String conversationId, List<Message> messages) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Message message : messages) {
+                ContentValues values = toValues(conversationId, message);
+                if (db.update("messages", values, "id = ?", new String[]{message.getId()}) == 0) {
+                    db.insert("messages", null, values);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        noteWrites(messages.size());
+    }
+
+    // Update-or-insert rather than REPLACE, which would skip the search index's delete trigger
+    @WorkerThread
+    public void putPendingMessage(String conversationId, Message message) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = toValues(conversationId, message);
+        values.put("pending", 1);
+        if (db.update("messages", values, "id = ?", new String[]{message.getId()}) == 0) {
+            db.insert("messages", null, values);
+        }
+        noteWrites(1);
+    }
+
+    @WorkerThread
+    public void clearPending(String messageId) {
+        ContentValues values = new ContentValues();
+        values.put("pending", 0);
+        getWritableDatabase().update("messages", values, "id = ?", new String[]{messageId});
+    }
+
+    @WorkerThread
+    public void deleteMessage(String messageId) {
+        getWritableDatabase().delete("messages", "id = ?", new String[]{messageId});
+    }
+
+    // Newest limit messages, in ascending order
+    @WorkerThread
+    public List<Message> getLatestMessages(String conversationId, int limit) {
+        List<Message> result = queryMessages(
+                "conversation_id = ?",
+                new String[]{conversationId},
+                "sent_at DESC, id DESC",
+                limit);
+        Collections.reverse(result);
+        return result;
+    }
+
+    // The limit messages just before the cursor, in ascending order
+    @WorkerThread
+    public List<Message> getMessagesBefore(String conversationId, Message cursor, int limit) {
+        String sentAt = String.valueOf(toMicros(cursor.getSentAt()));
+        List<Message> result = queryMessages(
+                "conversation_id = ? AND (sent_at < ? OR (sent_at = ? AND id < ?))",
+                new String[]{conversationId, sentAt, sentAt, cursor.getId()},
+                "sent_at DESC, id DESC",
+                limit);
+        Collections.reverse(result);
+        return result;
+    }
+
+    // The limit messages just after the cursor, in ascending order
+    @WorkerThread
+    public List<Message> getMessagesAfter(String conversationId, Message cursor, int limit) {
+        String sentAt = String.valueOf(toMicros(cursor.getSentAt()));
+        return queryMessages(
+                "conversation_id = ? AND (sent_at > ? OR (sent_at = ? AND id > ?))",
+                new String[]{conversationId, sentAt, sentAt, cursor.getId()},
+                "sent_at ASC, id ASC",
+                limit);
+    }
+
+    @WorkerThread
+    public Message getMessage(String messageId) {
+        List<Message> result = queryMessages("id = ?", new String[]{messageId}, null, 1);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    // Sent while offline and not yet confirmed by the server, oldest first
+    @WorkerThread
+    public List<PendingMessage> getPendingMessages() {
+        List<PendingMessage> result = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().query("messages", null, "pending = 1", null, null, null, "sent_at ASC")) {
+            while (c.moveToNext()) {
+                result.add(new PendingMessage(c.getString(c.getColumnIndexOrThrow("conversation_id")), fromCursor(c)));
+            }
+        }
+        return result;
+    }
+
+    // ----------------- Search ----------------
+
+    // Prefix search across every stored conversation, best matches first
+    @WorkerThread
+    public List<SearchResult> search(String query, int limit) {
+        String match = toMatchExpression(query);
+        if (match == null) {
+            return Collections.emptyList();
+        }
+
+        // Rank a bounded set of the newest candidates in Java, FTS4 has no built-in ranking
+        List<SearchResult> results = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().rawQuery(
+                "SELECT m.id, m.conversation_id, m.sender_username, m.sender_name, m.message, m.sent_at, m.status, "
+                        + "matchinfo(message_search, 'pcx') "
+                        + "FROM message_search JOIN messages m ON m.rowid = message_search.docid "
+                        + "WHERE message_search MATCH ? ORDER BY m.sent_at DESC LIMIT " + SEARCH_CANDIDATES,
+                new String[]{match})) {
+            while (c.moveToNext()) {
+                Message message = new Message(c.getString(4), c.getString(2), c.getString(3), fromMicros(c.getLong(5)), c.getString(6));
+                message.setId(c.getString(0));
+                results.add(new SearchResult(c.getString(1), message, score(c.getBlob(7))));
+            }
+        }
+
+        Collections.sort(results, (a, b) -> {
+            int byScore = Double.compare(b.score, a.score);
+            return byScore != 0 ? byScore : Long.compare(b.message.getSentAtNanos(), a.message.getSentAtNanos());
+        });
+        return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+    }
+
+    // Budget for stored message text, the oldest messages are dropped once it is exceeded
+    public void setSearchBudgetBytes(long bytes) {
+        searchBudgetBytes = bytes;
+    }
+
+    public static class SearchResult {
+        public final String conversationId;
+        public final Message message;
+        final double score;
+
+        SearchResult(String conversationId, Message message, double score) {
+            this.conversationId = conversationId;
+            this.message = message;
+            this.score = score;
+        }
+    }
+
+    // ----------------- Conversations ----------------
+
+    // Replaces the stored list of owner's conversations
+    @WorkerThread
+    public void putConversations(String owner, List<Conversation> conversations) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete("conversations", "owner = ?", new String[]{owner});
+            for (Conversation conversation : conversations) {
+                putConversation(db, owner, conversation);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @WorkerThread
+    public Conversation getConversation(String conversationId) {
+        try (Cursor c = getReadableDatabase().query("conversations", new String[]{"data"}, "id = ?", new String[]{conversationId},
+                null, null, null)) {
+            return c.moveToFirst() ? deserialize(c.getBlob(0)) : null;
+        }
+    }
+
+    // Most recently active first
+    @WorkerThread
+    public List<Conversation> getConversations(String owner) {
+        List<Conversation> result = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().query("conversations", new String[]{"data"}, "owner = ?", new String[]{owner},
+                null, null, "last_message_timestamp DESC")) {
+            while (c.moveToNext()) {
+                Conversation conversation = deserialize(c.getBlob(0));
+                if (conversation != null) {
+                    result.add(conversation);
+                }
+            }
+        }
+        return result;
+    }
+
+    // ----------------- Sync state ----------------
+
+    // Newest message pulled for this conversation, with only id and sentAt set, or null
+    @WorkerThread
+    public Message getSyncCursor(String conversationId) {
+        try (Cursor c = getReadableDatabase().query("sync_state", new String[]{"sent_at", "message_id"}, "conversation_id = ?",
+                new String[]{conversationId}, null, null, null)) {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            Message cursor = new Message();
+            cursor.setSentAt(fromMicros(c.getLong(0)));
+            cursor.setId(c.getString(1));
+            return cursor;
+        }
+    }
+
+    // Only ever moves the cursor forward
+    @WorkerThread
+    public void advanceSyncCursor(String conversationId, Message newest) {
+        Message current = getSyncCursor(conversationId);
+        if (current != null && ConversationHelpers.compareMessages(newest, current) <= 0) return;
+
+        ContentValues values = new ContentValues();
+        values.put("conversation_id", conversationId);
+        values.put("sent_at", toMicros(newest.getSentAt()));
+        values.put("message_id", newest.getId());
+        getWritableDatabase().insertWithOnConflict("sync_state", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    // Signing out must not leave another user's chats on the device
+    @WorkerThread
+    public void clear() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete("messages", null, null);
+        db.delete("conversations", null, null);
+        db.delete("sync_state", null, null);
+    }
+
+    public static class PendingMessage {
+        public final String conversationId;
+        public final Message message;
+
+        PendingMessage(String conversationId, Message message) {
+            this.conversationId = conversationId;
+            this.message = message;
+        }
+    }
+
+    // Helpers
+    private synchronized void noteWrites(int count) {
+        writesSinceTrim += count;
+        if (writesSinceTrim < TRIM_INTERVAL) return;
+        writesSinceTrim = 0;
+        trimToBudget();
+    }
+
+    // Drops the oldest confirmed messages until the stored text fits the budget. Only the old
+    // end is trimmed, so what is left stays contiguous up to each conversation's sync cursor.
+    private void trimToBudget() {
+        SQLiteDatabase db = getWritableDatabase();
+        long total;
+        try (Cursor c = db.rawQuery("SELECT TOTAL(" + TEXT_BYTES + ") FROM messages", null)) {
+            total = c.moveToFirst() ? c.getLong(0) : 0;
+        }
+        long excess = total - searchBudgetBytes;
+        if (excess <= 0) return;
+
+        List<Long> dropped = new ArrayList<>();
+        try (Cursor c = db.query("messages", new String[]{"rowid", TEXT_BYTES}, "pending = 0",
+                null, null, null, "sent_at ASC")) {
+            while (excess > 0 && c.moveToNext()) {
+                dropped.add(c.getLong(0));
+                excess -= c.getLong(1);
+            }
+        }
+
+        db.beginTransaction();
+        try {
+            for (long rowid : dropped) {
+                db.delete("messages", "rowid = ?", new String[]{String.valueOf(rowid)});
+            }
+            // A cursor without any messages behind it would make the next sync skip the newest page
+            db.execSQL("DELETE FROM sync_state WHERE conversation_id NOT IN (SELECT DISTINCT conversation_id FROM messages)");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Every word of the query becomes a prefix term, everything else is dropped so user input can't form FTS syntax
+    private static String toMatchExpression(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String word : query.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) continue;
+            if (match.length() > 0) match.append(' ');
+            match.append(word).append('*');
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    // Sum over terms and columns of how much of the term's total frequency this row holds
+    private static double score(byte[] matchinfo) {
+        ByteBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+        int phrases = info.getInt(0);
+        int columns = info.getInt(4);
+        double score = 0;
+        for (int p = 0; p < phrases; p++) {
+            for (int col = 0; col < columns; col++) {
+                int base = 8 + 12 * (p * columns + col);
+                int hitsHere = info.getInt(base);
+                int hitsEverywhere = info.getInt(base + 4);
+                if (hitsHere > 0 && hitsEverywhere > 0) {
+                    // Message text counts more than the sender's name
+                    score += (col == 0 ? 1.0 : 0.5) * hitsHere / hitsEverywhere;
+                }
+            }
+        }
+        return score;
+    }
+
+    private List<Message> queryMessages(String selection, String[] args, String orderBy, int limit) {
+        List<Message> result = new ArrayList<>(limit);
+        try (Cursor c = getReadableDatabase().query("messages", null, selection, args, null, null, orderBy, String.valueOf(limit))) {
+            while (c.moveToNext()) {
+                result.add(fromCursor(c));
+            }
+        }
+        return result;
+    }
+
+    private static ContentValues toValues(String conversationId, Message message) {
+        ContentValues values = new ContentValues();
+        values.put("id", message.getId());
+        values.put("conversation_id", conversationId);
+        values.put("sender_username", message.getSenderUsername());
+        values.put("sender_name", message.getSenderName());
+        values.put("message", message.getMessage());
+        values.put("sent_at", toMicros(message.getSentAt()));
+        values.put("status", message.getStatus());
+        return values;
+    }
+
+    private static Message fromCursor(Cursor c) {
+        Message message = new Message(
+                c.getString(c.getColumnIndexOrThrow("message")),
+                c.getString(c.getColumnIndexOrThrow("sender_username")),
+                c.getString(c.getColumnIndexOrThrow("sender_name")),
+                fromMicros(c.getLong(c.getColumnIndexOrThrow("sent_at"))),
+                c.getString(c.getColumnIndexOrThrow("status"))
+        );
+        message.setId(c.getString(c.getColumnIndexOrThrow("id")));
+        return message;
+    }
+
+    private static void putConversation(SQLiteDatabase db, String owner, Conversation conversation) {
+        byte[] data = serialize(conversation);
+        if (data == null) return;
+
+        ContentValues values = new ContentValues();
+        values.put("id", conversation.getId());
+        values.put("owner", owner);
+        values.put("last_message_timestamp", conversation.getLastMessageTimestamp() != null ? conversation.getLastMessageTimestamp().getTime() : 0);
+        values.put("data", data);
+        db.insertWithOnConflict("conversations", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    // Conversation is already Serializable for intents, so reuse that form on disk
+    private static byte[] serialize(Conversation conversation) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(conversation);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't serialize conversation " + conversation.getId(), e);
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Conversation deserialize(byte[] data) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return (Conversation) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            Log.w(TAG, "Dropping unreadable conversation", e);
+            return null;
+        }
+    }
+
+    static long toMicros(Timestamp timestamp) {
+        return timestamp.getSeconds() * 1_000_000L + timestamp.getNanoseconds() / 1000;
+    }
+
+    static Timestamp fromMicros(long micros) {
+        return new Timestamp(Math.floorDiv(micros, 1_000_000L), (int) Math.floorMod(micros, 1_000_000L) * 1000);
+    }
+}
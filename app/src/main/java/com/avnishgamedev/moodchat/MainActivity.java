@@ -28,10 +28,12 @@ import androidx.credentials.ClearCredentialStateRequest;
 import androidx.credentials.CredentialManager;
 import androidx.credentials.CredentialManagerCallback;
 import androidx.credentials.exceptions.ClearCredentialException;
+import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.google.android.material.floatingactionbutton.ExtendedFloatingActionButton;
 import com.google.android.material.snackbar.Snackbar;
@@ -39,11 +41,12 @@ import com.google.android.material.textfield.TextInputEditText;
 import com.google.android.material.textfield.TextInputLayout;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.firestore.DocumentChange;
 import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.EventListener;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.ListenerRegistration;
 import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -53,6 +56,14 @@ import java.util.concurrent.Executors;
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
 
+    // Users resolved ahead of the rows that need them
+    private static final int FIRST_FILL_ROWS = 20;
+    private static final int USER_PREFETCH_ROWS = 10;
+    // Paging, the first CONVERSATIONS_PAGE_SIZE rows are live and older pages are one-shot reads
+    private static final int PAGE_SIZE = ConversationHelpers.CONVERSATIONS_PAGE_SIZE;
+    private static final int MAX_ROWS = 5 * PAGE_SIZE;
+    private static final int PAGE_PREFETCH_ROWS = 10;
+
     // Views
     ExtendedFloatingActionButton fab;
     RecyclerView rvConversations;
@@ -64,7 +75,16 @@ public class MainActivity extends AppCompatActivity {
     FirebaseFirestore db;
     List<Conversation> conversations;
     ListenerRegistration conversationsRegistration;
-    public static EventListener<Conversation> conversationsUpdated;
+    boolean receivedConversations = false;
+    boolean liveSnapshotReceived = false;
+    String username;
+    // Rows at the head of the list that belong to the live first page, the rest are older pages
+    int liveCount = 0;
+    boolean hasMoreOlder = false;
+    boolean loadingOlder = false;
+    // Older rows right below the live page were dropped to bound the list and are paged back in on demand
+    boolean hasGapAboveOlder = false;
+    boolean loadingGap = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -112,7 +132,10 @@ public class MainActivity extends AppCompatActivity {
 
     @Override
     public boolean onOptionsItemSelected(@NonNull MenuItem item) {
-        if (item.getItemId() == R.id.action_profile) {
+        if (item.getItemId() == R.id.action_search) {
+            startActivity(new Intent(MainActivity.this, SearchActivity.class));
+            return true;
+        } else if (item.getItemId() == R.id.action_profile) {
             startActivity(new Intent(MainActivity.this, ProfileActivity.class));
             return true;
         } else if (item.getItemId() == R.id.action_logout) {
@@ -169,12 +192,29 @@ public class MainActivity extends AppCompatActivity {
         rvConversations = findViewById(R.id.rvConversations);
         conversations = new ArrayList<>();
         adapter = new ConversationAdapter(conversations, (parent, view, position, id) -> {
+            if (position == RecyclerView.NO_POSITION) return;
             Conversation selectedConversation = conversations.get(position);
             Intent i = new Intent(MainActivity.this, ConversationActivity.class);
             i.putExtra("conversation", (Serializable) selectedConversation);
             startActivity(i);
         });
         rvConversations.setAdapter(adapter);
+        rvConversations.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                // Resolve the rows about to scroll in together with the ones being bound now
+                LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                int lastVisible = layoutManager.findLastVisibleItemPosition();
+                adapter.prefetchUsers(lastVisible + 1, lastVisible + 1 + USER_PREFETCH_ROWS);
+
+                if (lastVisible >= conversations.size() - PAGE_PREFETCH_ROWS) {
+                    loadOlderConversations();
+                }
+                if (hasGapAboveOlder && layoutManager.findFirstVisibleItemPosition() <= liveCount + PAGE_PREFETCH_ROWS) {
+                    loadGapConversations();
+                }
+            }
+        });
 
         // Add item decorator for spacing
         rvConversations.addItemDecoration(new RecyclerView.ItemDecoration() {
@@ -208,11 +248,72 @@ public class MainActivity extends AppCompatActivity {
     private void updateConversationsList(List<Conversation> fresh) {
         conversations.clear();
         conversations.addAll(fresh);
+        liveCount = fresh.size();
+        hasMoreOlder = fresh.size() >= PAGE_SIZE;
+        hasGapAboveOlder = false;
+        // Cold fill: one batch covers the first screen and the rows just below it
+        adapter.prefetchUsers(0, FIRST_FILL_ROWS);
         adapter.notifyDataSetChanged();
         setupEmptyState();
         Log.d(TAG, "Conversations updated (full): " + conversations.size());
     }
 
+    // Changes come in order with indices that are valid when each one is applied, so they map 1:1 onto notifications.
+    // The indices are relative to the live page, which is always the head of the list
+    private void applyConversationChanges(List<DocumentChange> changes) {
+        // A row only leaves the live page for an older one when a newer conversation entered it in
+        // the same snapshot, every other removal is a deleted conversation
+        int entered = 0;
+        for (DocumentChange dc : changes) {
+            if (dc.getType() == DocumentChange.Type.ADDED) {
+                entered++;
+            }
+        }
+
+        for (DocumentChange dc : changes) {
+            Conversation c = dc.getDocument().toObject(Conversation.class);
+            c.setId(dc.getDocument().getId());
+
+            switch (dc.getType()) {
+                case ADDED:
+                    // An older conversation with a new message moves up into the live page
+                    int older = indexOfConversation(c.getId(), liveCount);
+                    if (older != -1) {
+                        conversations.remove(older);
+                        adapter.notifyItemRemoved(older);
+                    }
+                    conversations.add(dc.getNewIndex(), c);
+                    adapter.notifyItemInserted(dc.getNewIndex());
+                    liveCount++;
+                    break;
+                case MODIFIED:
+                    if (dc.getOldIndex() != dc.getNewIndex()) {
+                        conversations.remove(dc.getOldIndex());
+                        conversations.add(dc.getNewIndex(), c);
+                        adapter.notifyItemMoved(dc.getOldIndex(), dc.getNewIndex());
+                    } else {
+                        conversations.set(dc.getNewIndex(), c);
+                    }
+                    adapter.notifyItemChanged(dc.getNewIndex());
+                    break;
+                case REMOVED:
+                    Conversation removed = conversations.remove(dc.getOldIndex());
+                    liveCount--;
+                    if (entered > 0 && liveCount < conversations.size() && !hasGapAboveOlder) {
+                        entered--;
+                        // Pushed out of the live page by a newer one, it is now the most recent older row
+                        conversations.add(liveCount, removed);
+                        adapter.notifyItemMoved(dc.getOldIndex(), liveCount);
+                    } else {
+                        adapter.notifyItemRemoved(dc.getOldIndex());
+                    }
+                    break;
+            }
+        }
+        setupEmptyState();
+        Log.d(TAG, "Conversations updated (" + changes.size() + " changes): " + conversations.size());
+    }
+
     private void startConversationsListener() {
         setLoading(true);
 
@@ -220,9 +321,13 @@ public class MainActivity extends AppCompatActivity {
                 .addOnSuccessListener(user -> {
                     // Obtain a Firestore query for this user's conversations
                     // e.g., whereArrayContains("members", user.getUid()) or deterministic IDs if you store a mirror
-                    Query query = ConversationHelpers.getConversationsQuery(user.getUsername());
+                    username = user.getUsername();
+                    Query query = ConversationHelpers.getConversationsPageQuery(user.getUsername());
+                    showStoredConversations(user.getUsername());
+                    SyncEngine.getInstance().reconcilePending();
 
                     if (conversationsRegistration != null) stopConversationsListener();
+                    liveSnapshotReceived = false;
                     conversationsRegistration = query.addSnapshotListener((snap, e) -> {
                         setLoading(false);
 
@@ -235,20 +340,22 @@ public class MainActivity extends AppCompatActivity {
                             return;
                         }
 
-                        List<Conversation> fresh = new ArrayList<>();
-                        for (DocumentSnapshot d : snap.getDocuments()) {
-                            Conversation c = d.toObject(Conversation.class);
-                            if (c != null) {
-                                c.setId(d.getId());
-                                fresh.add(c);
-
-                                if (conversationsUpdated != null) {
-                                    conversationsUpdated.onEvent(c, null);
-                                }
-                            }
+                        if (!liveSnapshotReceived) {
+                            // First snapshot replaces whatever was painted from disk
+                            receivedConversations = true;
+                            liveSnapshotReceived = true;
+                            updateConversationsList(toConversations(snap));
+                        } else if (!snap.getDocumentChanges().isEmpty()) {
+                            applyConversationChanges(snap.getDocumentChanges());
+                        } else {
+                            return;
+                        }
+
+                        List<Conversation> snapshot = new ArrayList<>(conversations);
+                        LocalStore store = LocalStore.getInstance();
+                        if (store != null) {
+                            AppExecutors.io().execute(() -> store.putConversations(user.getUsername(), snapshot));
                         }
-                        updateConversationsList(fresh);
-                        Log.d(TAG, "Conversations updated (full): " + conversations.size());
                     });
                 })
                 .addOnFailureListener(err -> {
@@ -256,6 +363,109 @@ public class MainActivity extends AppCompatActivity {
                     Log.e(TAG, "Failed to load user for conversations listener", err);
                 });
     }
+    private void loadOlderConversations() {
+        if (!hasMoreOlder || loadingOlder || username == null || conversations.isEmpty()) return;
+        loadingOlder = true;
+
+        Conversation cursor = conversations.get(conversations.size() - 1);
+        ConversationHelpers.getConversationsAfter(username, cursor)
+                .addOnCompleteListener(this, task -> {
+                    loadingOlder = false;
+                    if (!task.isSuccessful()) {
+                        Log.e(TAG, "Failed to load older conversations", task.getException());
+                        return;
+                    }
+
+                    List<Conversation> page = toConversations(task.getResult());
+                    hasMoreOlder = page.size() == PAGE_SIZE;
+                    int start = conversations.size();
+                    for (Conversation c : page) {
+                        if (indexOfConversation(c.getId(), 0) == -1) {
+                            conversations.add(c);
+                        }
+                    }
+                    adapter.notifyItemRangeInserted(start, conversations.size() - start);
+
+                    // Keep the list bounded by dropping the older rows furthest above the viewport
+                    int excess = conversations.size() - MAX_ROWS;
+                    if (excess > 0) {
+                        conversations.subList(liveCount, liveCount + excess).clear();
+                        adapter.notifyItemRangeRemoved(liveCount, excess);
+                        hasGapAboveOlder = true;
+                    }
+                });
+    }
+
+    // Refills older rows that were dropped between the live page and the rest of the list
+    private void loadGapConversations() {
+        if (!hasGapAboveOlder || loadingGap || username == null || liveCount >= conversations.size()) return;
+        loadingGap = true;
+
+        Conversation cursor = conversations.get(liveCount);
+        ConversationHelpers.getConversationsBefore(username, cursor)
+                .addOnCompleteListener(this, task -> {
+                    loadingGap = false;
+                    if (!task.isSuccessful()) {
+                        Log.e(TAG, "Failed to load conversations above older rows", task.getException());
+                        return;
+                    }
+
+                    List<Conversation> page = toConversations(task.getResult());
+                    List<Conversation> missing = new ArrayList<>();
+                    boolean reachedLive = page.size() < PAGE_SIZE;
+                    for (Conversation c : page) {
+                        if (indexOfConversation(c.getId(), 0) != -1) {
+                            reachedLive = true;
+                        } else {
+                            missing.add(c);
+                        }
+                    }
+                    hasGapAboveOlder = !reachedLive;
+                    conversations.addAll(liveCount, missing);
+                    adapter.notifyItemRangeInserted(liveCount, missing.size());
+
+                    int excess = conversations.size() - MAX_ROWS;
+                    if (excess > 0) {
+                        conversations.subList(conversations.size() - excess, conversations.size()).clear();
+                        adapter.notifyItemRangeRemoved(conversations.size(), excess);
+                        hasMoreOlder = true;
+                    }
+                });
+    }
+
+    // Position of the conversation at or after from, or -1
+    private int indexOfConversation(String id, int from) {
+        for (int i = from; i < conversations.size(); i++) {
+            if (conversations.get(i).getId().equals(id)) return i;
+        }
+        return -1;
+    }
+
+    private static List<Conversation> toConversations(QuerySnapshot snap) {
+        List<Conversation> result = new ArrayList<>();
+        for (DocumentSnapshot d : snap.getDocuments()) {
+            Conversation c = d.toObject(Conversation.class);
+            if (c != null) {
+                c.setId(d.getId());
+                result.add(c);
+            }
+        }
+        return result;
+    }
+
+    // Paints the last known list from disk while the listener waits for Firestore
+    private void showStoredConversations(String username) {
+        LocalStore store = LocalStore.getInstance();
+        if (store == null) return;
+
+        Tasks.call(AppExecutors.io(), () -> store.getConversations(username))
+                .addOnSuccessListener(this, stored -> {
+                    if (receivedConversations || stored.isEmpty()) return;
+                    setLoading(false);
+                    updateConversationsList(stored);
+                });
+    }
+
     private void stopConversationsListener() {
         if (conversationsRegistration != null) {
             conversationsRegistration.remove();
@@ -265,7 +475,7 @@ public class MainActivity extends AppCompatActivity {
 
     private void startConversation() {
         promptUsername().addOnSuccessListener(user -> {
-            ConversationHelpers.createConversation(UserManager.getInstance().getUser().getUsername(), user.getString("username")).addOnCompleteListener(task -> {
+            ConversationHelpers.createConversation(UserManager.getInstance().getUser(), user).addOnCompleteListener(task -> {
                 if (task.isSuccessful()) {
                     // startActivity(new Intent(MainActivity.this, ConversationActivity.class));
                     Snackbar.make(fab, "Conversation started", Snackbar.LENGTH_SHORT).show();
@@ -279,6 +489,11 @@ public class MainActivity extends AppCompatActivity {
 
     private void signOut() {
         FirebaseAuth.getInstance().signOut();
+        LocalStore store = LocalStore.getInstance();
+        if (store != null) {
+            AppExecutors.io().execute(store::clear);
+        }
+        UserRepository.getInstance().clear();
         if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
             ClearCredentialStateRequest clearRequest = new ClearCredentialStateRequest();
             CredentialManager.create(this).clearCredentialStateAsync(
@@ -307,8 +522,8 @@ public class MainActivity extends AppCompatActivity {
     }
 
     // Helpers
-    public Task<DocumentSnapshot> promptUsername() {
-        final TaskCompletionSource<DocumentSnapshot> taskCompletionSource = new TaskCompletionSource<>();
+    public Task<User> promptUsername() {
+        final TaskCompletionSource<User> taskCompletionSource = new TaskCompletionSource<>();
 
         TextInputLayout textInputLayout = new TextInputLayout(this);
         textInputLayout.setHint("Enter other username");
@@ -343,8 +558,7 @@ public class MainActivity extends AppCompatActivity {
                 // Call your existing function to check if username is taken
                 getUserByUsername(username).addOnCompleteListener(task -> {
                     if (task.isSuccessful()) {
-                        DocumentSnapshot documentSnapshot = task.getResult();
-                        taskCompletionSource.setResult(documentSnapshot);
+                        taskCompletionSource.setResult(task.getResult());
                         dialog.dismiss();
                     } else {
                         textInputLayout.setError(task.getException().getMessage());
@@ -358,22 +572,16 @@ public class MainActivity extends AppCompatActivity {
         return taskCompletionSource.getTask();
     }
 
-    private Task<DocumentSnapshot> getUserByUsername(String username) {
-        TaskCompletionSource<DocumentSnapshot> taskCompletionSource = new TaskCompletionSource<>();
+    private Task<User> getUserByUsername(String username) {
+        TaskCompletionSource<User> taskCompletionSource = new TaskCompletionSource<>();
 
         if (UserManager.getInstance().getUser().getUsername().equals(username)) {
             taskCompletionSource.setException(new Exception("Cannot start conversation with self!"));
             return taskCompletionSource.getTask();
         }
 
-        db.collection("users").whereEqualTo("username", username).get()
-                .addOnSuccessListener(queryDocumentSnapshots -> {
-                    if (queryDocumentSnapshots.isEmpty()) {
-                        taskCompletionSource.setException(new Exception("User not found!"));
-                    } else {
-                        taskCompletionSource.setResult(queryDocumentSnapshots.getDocuments().get(0));
-                    }
-                })
+        UserRepository.getInstance().get(username)
+                .addOnSuccessListener(user -> taskCompletionSource.setResult(user))
                 .addOnFailureListener(e -> taskCompletionSource.setException(e));
 
         return taskCompletionSource.getTask();
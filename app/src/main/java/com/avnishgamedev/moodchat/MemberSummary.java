@@ -0,0 +1,72 @@
+package com.avnishgamedev.moodchat;
+
+import com.google.firebase.firestore.Exclude;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * The parts of a member's profile a conversation row needs, copied onto the
+ * conversation document so the list can render without reading the user document.
+ * Kept up to date by fan-out writes from the member's own client when their profile
+ * changes. Presence isn't copied, it changes too often to rewrite every conversation.
+ */
+public class MemberSummary implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private String name;
+    // Hash of the rendition used by list rows, null for users without an uploaded picture
+    private String avatarHash;
+
+    public MemberSummary() {}
+    public MemberSummary(String name, String avatarHash) {
+        this.name = name;
+        this.avatarHash = avatarHash;
+    }
+
+    // Null for users whose only picture is the legacy inline one, too large to copy onto conversations.
+    // Readers load those users in full instead
+    public static MemberSummary of(User user) {
+        String avatarHash = AvatarRendition.hashFor(user, AvatarRendition.SMALL.sizePx);
+        if (avatarHash == null && user.getProfilePicture() != null && !user.getProfilePicture().isEmpty()) {
+            return null;
+        }
+        return new MemberSummary(user.getName(), avatarHash);
+    }
+
+    public String getName() {
+        return name;
+    }
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getAvatarHash() {
+        return avatarHash;
+    }
+    public void setAvatarHash(String avatarHash) {
+        this.avatarHash = avatarHash;
+    }
+
+    // Enough of a User for AvatarLoader and the row binding, without presence
+    @Exclude
+    public User toUser(String username) {
+        User user = new User();
+        user.setUsername(username);
+        user.setName(name);
+        user.setProfilePictureHash(avatarHash);
+        return user;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof MemberSummary)) return false;
+        MemberSummary other = (MemberSummary) o;
+        return Objects.equals(name, other.name) && Objects.equals(avatarHash, other.avatarHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, avatarHash);
+    }
+}
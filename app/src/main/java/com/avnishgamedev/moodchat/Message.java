@@ -2,23 +2,46 @@ package com.avnishgamedev.moodchat;
 
 import com.google.firebase.Timestamp;
 import com.google.firebase.firestore.DocumentId;
+import com.google.firebase.firestore.Exclude;
 
+/**
+ * A message as read from Firestore, stored compactly since a long conversation keeps
+ * many of them in memory. Senders and statuses only take a few distinct values, so
+ * they are interned to small indices, and sentAt is kept as epoch nanos rather than
+ * a Timestamp object. The getters and setters still use the Firestore types.
+ */
 public class Message {
+    // Senders past the cap are kept as plain Strings on the message
+    private static final InternTable USERNAMES = new InternTable(4096);
+    private static final InternTable NAMES = new InternTable(4096);
+    private static final InternTable STATUSES = new InternTable(Byte.MAX_VALUE, "sent", "delivered", "read");
+
+    // Slots of values that didn't fit their table
+    private static final int SENDER_USERNAME = 0;
+    private static final int SENDER_NAME = 1;
+    private static final int STATUS = 2;
+
+    // Marks a missing sentAt, e.g. a server timestamp that hasn't resolved yet
+    private static final long NO_TIME = Long.MIN_VALUE;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
     @DocumentId
     private String id;
     private String message;
-    private String senderUsername;
-    private String senderName;
-    private Timestamp sentAt;
-    private String status;
+    private long sentAtNanos = NO_TIME;
+    private short senderUsername = -1;
+    private short senderName = -1;
+    private byte status = -1;
+    // Null unless a table was full
+    private String[] uninterned;
 
     public Message() {}
     public Message(String message, String senderUsername, String senderName, Timestamp sentAt, String status) {
         this.message = message;
-        this.senderUsername = senderUsername;
-        this.senderName = senderName;
-        this.sentAt = sentAt;
-        this.status = status;
+        setSenderUsername(senderUsername);
+        setSenderName(senderName);
+        setSentAt(sentAt);
+        setStatus(status);
     }
 
     public String getId() {
@@ -36,30 +59,63 @@ public class Message {
     }
 
     public String getSenderUsername() {
-        return senderUsername;
+        return lookup(USERNAMES, senderUsername, SENDER_USERNAME);
     }
     public void setSenderUsername(String senderUsername) {
-        this.senderUsername = senderUsername;
+        this.senderUsername = (short) store(USERNAMES, senderUsername, SENDER_USERNAME);
     }
 
     public String getSenderName() {
-        return senderName;
+        return lookup(NAMES, senderName, SENDER_NAME);
     }
     public void setSenderName(String senderName) {
-        this.senderName = senderName;
+        this.senderName = (short) store(NAMES, senderName, SENDER_NAME);
     }
 
     public Timestamp getSentAt() {
-        return sentAt;
+        if (sentAtNanos == NO_TIME) {
+            return null;
+        }
+        return new Timestamp(Math.floorDiv(sentAtNanos, NANOS_PER_SECOND), (int) Math.floorMod(sentAtNanos, NANOS_PER_SECOND));
     }
     public void setSentAt(Timestamp sentAt) {
-        this.sentAt = sentAt;
+        this.sentAtNanos = sentAt != null ? sentAt.getSeconds() * NANOS_PER_SECOND + sentAt.getNanoseconds() : NO_TIME;
+    }
+
+    // Epoch nanos without allocating a Timestamp, for comparisons on hot paths
+    @Exclude
+    public long getSentAtNanos() {
+        return sentAtNanos;
+    }
+
+    // Epoch millis, for formatting and Date comparisons
+    @Exclude
+    public long getSentAtMillis() {
+        return Math.floorDiv(sentAtNanos, 1_000_000L);
     }
 
     public String getStatus() {
-        return status;
+        return lookup(STATUSES, status, STATUS);
     }
     public void setStatus(String status) {
-        this.status = status;
+        this.status = (byte) store(STATUSES, status, STATUS);
+    }
+
+    // Helpers
+    private int store(InternTable table, String value, int slot) {
+        int index = table.intern(value);
+        if (index == InternTable.FULL) {
+            if (uninterned == null) {
+                uninterned = new String[3];
+            }
+            uninterned[slot] = value;
+        } else if (uninterned != null) {
+            uninterned[slot] = null;
+        }
+        return index;
+    }
+
+    private String lookup(InternTable table, int index, int slot) {
+        return index == InternTable.FULL ? uninterned[slot] : table.get(index);
     }
 }
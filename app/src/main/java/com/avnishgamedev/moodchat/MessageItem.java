@@ -0,0 +1,51 @@
+package com.avnishgamedev.moodchat;
+
+import androidx.core.text.PrecomputedTextCompat;
+
+import java.util.Objects;
+
+/**
+ * Immutable display model for one row of the conversation, built off the main thread
+ * by MessageItemMapper so binding only copies fields into views.
+ */
+public final class MessageItem {
+    public final String id;
+    public final String text;
+    // Text already measured for the bubble, null until the mapper has the bubble's text params
+    public final PrecomputedTextCompat precomputedText;
+    public final String time;
+    // Non-null only on the first message of a day
+    public final String dayLabel;
+    public final boolean isMine;
+    public final String status;
+
+    // Source document and its day, used by the mapper to reuse unchanged items
+    final Message message;
+    final int dayKey;
+    final PrecomputedTextCompat.Params textParams;
+
+    MessageItem(Message message, String text, PrecomputedTextCompat precomputedText, PrecomputedTextCompat.Params textParams, String time, String dayLabel, boolean isMine, String status, int dayKey) {
+        this.id = message.getId();
+        this.text = text;
+        this.precomputedText = precomputedText;
+        this.textParams = textParams;
+        this.time = time;
+        this.dayLabel = dayLabel;
+        this.isMine = isMine;
+        this.status = status;
+        this.message = message;
+        this.dayKey = dayKey;
+    }
+
+    public boolean startsDay() {
+        return dayLabel != null;
+    }
+
+    // Everything except the status label
+    boolean sameBubble(MessageItem other) {
+        return isMine == other.isMine
+                && text.equals(other.text)
+                && time.equals(other.time)
+                && Objects.equals(dayLabel, other.dayLabel);
+    }
+}
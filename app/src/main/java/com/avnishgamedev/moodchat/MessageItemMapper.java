@@ -0,0 +1,103 @@
+package com.avnishgamedev.moodchat;
+
+import androidx.core.text.PrecomputedTextCompat;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Maps Message documents into MessageItems on a background thread. Items are reused
+ * across builds when their document and day separator haven't changed, so a new
+ * message only costs formatting and text layout for that one row.
+ */
+public class MessageItemMapper {
+    private final String myUsername;
+    // Only touched inside build, which is synchronized
+    private Map<String, MessageItem> previous = new HashMap<>();
+    // Captured from the bubble TextViews once the adapter has created one of each kind
+    private volatile PrecomputedTextCompat.Params sentTextParams;
+    private volatile PrecomputedTextCompat.Params receivedTextParams;
+    // The other member's read watermark, my messages at or before it show as read
+    private volatile Date peerReadUpTo;
+
+    public MessageItemMapper(String myUsername) {
+        this.myUsername = myUsername;
+    }
+
+    // Later builds lay out message text with these params so binding doesn't have to
+    public void setTextParams(boolean isMine, PrecomputedTextCompat.Params params) {
+        if (isMine) {
+            sentTextParams = params;
+        } else {
+            receivedTextParams = params;
+        }
+    }
+
+    public void setPeerReadUpTo(Date peerReadUpTo) {
+        this.peerReadUpTo = peerReadUpTo;
+    }
+
+    public Date getPeerReadUpTo() {
+        return peerReadUpTo;
+    }
+
+    // The snapshot must not be modified after it is passed in
+    public Task<List<MessageItem>> map(List<Message> snapshot) {
+        return Tasks.call(AppExecutors.decode(), () -> build(snapshot));
+    }
+
+    private synchronized List<MessageItem> build(List<Message> snapshot) {
+        SimpleDateFormat timeFormat = new SimpleDateFormat("hh:mm a", Locale.getDefault());
+        DateFormat dayFormat = DateFormat.getDateInstance(DateFormat.MEDIUM, Locale.getDefault());
+        Calendar calendar = Calendar.getInstance();
+        PrecomputedTextCompat.Params sentParams = sentTextParams;
+        PrecomputedTextCompat.Params receivedParams = receivedTextParams;
+        Date readUpTo = peerReadUpTo;
+
+        List<MessageItem> items = new ArrayList<>(snapshot.size());
+        Map<String, MessageItem> built = new HashMap<>(snapshot.size() * 2);
+        int previousDayKey = -1;
+        for (Message message : snapshot) {
+            boolean isMine = message.getSenderUsername().equals(myUsername);
+            PrecomputedTextCompat.Params params = isMine ? sentParams : receivedParams;
+            String status = isMine && readUpTo != null && message.getSentAtMillis() <= readUpTo.getTime() ? "read" : message.getStatus();
+
+            MessageItem item = previous.get(message.getId());
+            if (item == null || item.message != message || item.textParams != params || !Objects.equals(item.status, status)
+                    || item.startsDay() != (item.dayKey != previousDayKey)) {
+                Date sentAt = new Date(message.getSentAtMillis());
+                calendar.setTime(sentAt);
+                int dayKey = calendar.get(Calendar.YEAR) * 1000 + calendar.get(Calendar.DAY_OF_YEAR);
+                String text = message.getMessage().trim();
+                item = new MessageItem(
+                        message,
+                        text,
+                        params != null ? PrecomputedTextCompat.create(text, params) : null,
+                        params,
+                        timeFormat.format(sentAt),
+                        dayKey != previousDayKey ? dayFormat.format(sentAt) : null,
+                        isMine,
+                        status,
+                        dayKey
+                );
+            }
+
+            items.add(item);
+            built.put(item.id, item);
+            previousDayKey = item.dayKey;
+        }
+        previous = built;
+        return items;
+    }
+}
@@ -0,0 +1,136 @@
+package com.avnishgamedev.moodchat;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * In-memory message window with an id -> position index, so listener batches cost
+ * O(changes) instead of a scan of the whole history per change.
+ *
+ * Positions are stored relative to a moving offset: appends and prepends never touch
+ * existing index entries. Removals only mark the tail of the index stale, and it is
+ * rebuilt lazily the next time a position past that point is needed.
+ */
+public class MessageList extends AbstractList<Message> {
+    private final ArrayList<Message> items = new ArrayList<>();
+    // id -> slot, where position = slot + offset
+    private final HashMap<String, Integer> slots = new HashMap<>();
+    private int offset = 0;
+    // Positions at or after this one have stale slots
+    private int staleFrom = Integer.MAX_VALUE;
+
+    @Override
+    public Message get(int position) {
+        return items.get(position);
+    }
+
+    @Override
+    public int size() {
+        return items.size();
+    }
+
+    public boolean containsId(String id) {
+        return slots.containsKey(id);
+    }
+
+    // Position of the message with this id, or -1
+    public int positionOf(String id) {
+        Integer slot = slots.get(id);
+        if (slot == null) {
+            return -1;
+        }
+        int position = slot + offset;
+        if (position >= staleFrom) {
+            reindexFrom(staleFrom);
+            position = slots.get(id) + offset;
+        }
+        return position;
+    }
+
+    // Adds the message at the end and returns its position
+    public int append(Message message) {
+        int position = items.size();
+        items.add(message);
+        slots.put(message.getId(), position - offset);
+        return position;
+    }
+
+    // Adds older messages (in ascending order) in front of the window
+    public void prependAll(List<Message> older) {
+        items.addAll(0, older);
+        offset += older.size();
+        if (staleFrom != Integer.MAX_VALUE) {
+            staleFrom += older.size();
+        }
+        for (int i = 0; i < older.size(); i++) {
+            slots.put(older.get(i).getId(), i - offset);
+        }
+    }
+
+    // Drops the oldest count messages
+    public void trimFront(int count) {
+        List<Message> dropped = items.subList(0, count);
+        for (Message message : dropped) {
+            slots.remove(message.getId());
+        }
+        dropped.clear();
+        offset -= count;
+        if (staleFrom != Integer.MAX_VALUE) {
+            staleFrom = Math.max(0, staleFrom - count);
+        }
+    }
+
+    // Drops the newest count messages
+    public void trimBack(int count) {
+        List<Message> dropped = items.subList(items.size() - count, items.size());
+        for (Message message : dropped) {
+            slots.remove(message.getId());
+        }
+        dropped.clear();
+    }
+
+    // Replaces the message with the same id and returns its position, or -1 if it isn't loaded
+    public int replace(Message message) {
+        int position = positionOf(message.getId());
+        if (position != -1) {
+            items.set(position, message);
+        }
+        return position;
+    }
+
+    // Removes the message with this id and returns the position it had, or -1
+    public int removeById(String id) {
+        int position = positionOf(id);
+        if (position == -1) {
+            return -1;
+        }
+        items.remove(position);
+        slots.remove(id);
+        staleFrom = Math.min(staleFrom, position);
+        return position;
+    }
+
+    // Immutable copy for the adapter to diff against, later edits to this list don't affect it
+    public List<Message> snapshot() {
+        return Collections.unmodifiableList(new ArrayList<>(items));
+    }
+
+    @Override
+    public void clear() {
+        items.clear();
+        slots.clear();
+        offset = 0;
+        staleFrom = Integer.MAX_VALUE;
+    }
+
+    // Helpers
+    private void reindexFrom(int from) {
+        for (int i = from; i < items.size(); i++) {
+            slots.put(items.get(i).getId(), i - offset);
+        }
+        staleFrom = Integer.MAX_VALUE;
+    }
+}
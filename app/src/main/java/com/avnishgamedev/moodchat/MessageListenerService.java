@@ -9,22 +9,22 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Build;
 import android.os.IBinder;
-import android.util.Base64;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.firestore.DocumentChange;
-import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.ListenerRegistration;
 
-import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 public class MessageListenerService extends Service {
     private static final String TAG = "MessageListenerService";
@@ -32,15 +32,17 @@ public class MessageListenerService extends Service {
     private static final int NOTIFICATION_ID = 1;
     private static final String CHANNEL_ID = "MessageListenerServiceChannel";
 
-    private ArrayList<ListenerRegistration> listeners;
+    private ListenerRegistration conversationsRegistration;
+    // conversation id -> listener for its undelivered messages, only for the first page of conversations
+    private final Map<String, ListenerRegistration> messageListeners = new HashMap<>();
+    private final Map<String, Conversation> conversations = new HashMap<>();
+    private final DeliveryAckCoalescer deliveryAcks = new DeliveryAckCoalescer();
 
     @Override
     public void onCreate() {
         super.onCreate();
         createNotificationChannel();
 
-        listeners = new ArrayList<>();
-
         Log.d(TAG, "Service Created");
     }
 
@@ -62,66 +64,42 @@ public class MessageListenerService extends Service {
     }
 
     private void startFirebaseListeners() {
+        if (conversationsRegistration != null) return;
+
         UserManager.getInstance().loadUser()
                 .addOnSuccessListener(user -> {
+                    if (conversationsRegistration != null) return;
                     String currentUsername = user.getUsername();
-                    ConversationHelpers.getConversationsQuery(currentUsername).get()
-                            .addOnSuccessListener(querySnap -> {
-                                for (DocumentSnapshot doc : querySnap.getDocuments()) {
-                                    if (doc.exists()) {
-                                        Conversation conv = doc.toObject(Conversation.class);
-                                        if (conv != null) {
-                                            ListenerRegistration listener = ConversationHelpers.getMessagesQuery(conv.getId())
-                                                    .whereEqualTo("status", "sent")
-                                                    .addSnapshotListener((snap, e) -> {
-                                                        if (e != null) {
-                                                            Log.e(TAG, "Message listen failed for conv: " + conv.getId(), e);
-                                                            return;
-                                                        }
-                                                        if (snap == null) {
-                                                            Log.w(TAG, "Messages snapshot is null for conv: " + conv.getId());
-                                                            return;
-                                                        }
-
-                                                        Log.d(TAG, "Received " + snap.getDocumentChanges().size() + " document changes");
-
-                                                        for (DocumentChange dc : snap.getDocumentChanges()) {
-                                                            if (dc.getType() == DocumentChange.Type.ADDED) {
-                                                                Message message = dc.getDocument().toObject(Message.class);
-
-                                                                if (message.getSenderUsername().equals(currentUsername)) {
-                                                                    Log.d(TAG, "Skipping own message");
-                                                                    continue;
-                                                                }
-
-                                                                Log.d(TAG, "Showing notification for message: " + message.getMessage());
-
-                                                                ConversationHelpers.getUserByUsername(message.getSenderUsername())
-                                                                        .addOnSuccessListener(otherUser -> {
-                                                                            Log.d(TAG, "Loaded other user: " + otherUser.getName());
-                                                                            showMessageNotification(getBaseContext(),
-                                                                                    base64ToBitmap(otherUser.getProfilePicture()),
-                                                                                    otherUser.getUsername(),
-                                                                                    otherUser.getName(),
-                                                                                    message.getMessage(),
-                                                                                    conv);
-                                                                        })
-                                                                        .addOnFailureListener(err -> {
-                                                                            Log.e(TAG, "Failed to load other user for message listener", err);
-                                                                        });
-
-                                                                ConversationHelpers.updateMessageStatus(conv.getId(), message.getId(), "delivered");
-                                                            }
-                                                        }
-                                                    });
-                                            listeners.add(listener);
-                                            Log.d(TAG, "Added listener for conversation: " + conv.getId());
+
+                    // Only the most recent page is watched. A new message moves its conversation into it,
+                    // which attaches a message listener that then sees the message
+                    conversationsRegistration = ConversationHelpers.getConversationsPageQuery(currentUsername)
+                            .addSnapshotListener((snap, e) -> {
+                                if (e != null) {
+                                    Log.e(TAG, "Failed to listen to conversations for message listener", e);
+                                    return;
+                                }
+                                if (snap == null) return;
+
+                                for (DocumentChange dc : snap.getDocumentChanges()) {
+                                    String conversationId = dc.getDocument().getId();
+                                    if (dc.getType() == DocumentChange.Type.REMOVED) {
+                                        conversations.remove(conversationId);
+                                        ListenerRegistration listener = messageListeners.remove(conversationId);
+                                        if (listener != null) {
+                                            listener.remove();
+                                            Log.d(TAG, "Removed listener for conversation: " + conversationId);
                                         }
+                                        continue;
+                                    }
+
+                                    Conversation conv = dc.getDocument().toObject(Conversation.class);
+                                    conv.setId(conversationId);
+                                    conversations.put(conversationId, conv);
+                                    if (!messageListeners.containsKey(conversationId)) {
+                                        startMessageListener(conversationId, currentUsername);
                                     }
                                 }
-                            })
-                            .addOnFailureListener(err -> {
-                                Log.e(TAG, "Failed to load conversations for message listener", err);
                             });
                 })
                 .addOnFailureListener(err -> {
@@ -129,6 +107,83 @@ public class MessageListenerService extends Service {
                 });
     }
 
+    private void startMessageListener(String conversationId, String currentUsername) {
+        ListenerRegistration listener = ConversationHelpers.getMessagesQuery(conversationId)
+                .whereEqualTo("status", "sent")
+                .addSnapshotListener((snap, e) -> {
+                    if (e != null) {
+                        Log.e(TAG, "Message listen failed for conv: " + conversationId, e);
+                        return;
+                    }
+                    if (snap == null) {
+                        Log.w(TAG, "Messages snapshot is null for conv: " + conversationId);
+                        return;
+                    }
+
+                    Log.d(TAG, "Received " + snap.getDocumentChanges().size() + " document changes");
+
+                    // Latest copy of the conversation, its summaries and theme change while the listener runs
+                    Conversation conv = conversations.get(conversationId);
+                    if (conv == null) return;
+
+                    boolean incoming = false;
+
+                    for (DocumentChange dc : snap.getDocumentChanges()) {
+                        if (dc.getType() == DocumentChange.Type.ADDED) {
+                            Message message = dc.getDocument().toObject(Message.class);
+
+                            if (message.getSenderUsername().equals(currentUsername)) {
+                                Log.d(TAG, "Skipping own message");
+                                continue;
+                            }
+
+                            // Already read in the app, only its status is behind
+                            Date readUpTo = conv.getReadUpTo(currentUsername);
+                            if (readUpTo != null && message.getSentAt() != null && message.getSentAtMillis() <= readUpTo.getTime()) {
+                                deliveryAcks.acknowledge(conv.getId(), message.getId());
+                                continue;
+                            }
+
+                            incoming = true;
+                            Log.d(TAG, "Showing notification for message: " + message.getMessage());
+
+                            // The conversation's member summary saves a user lookup per notification,
+                            // unless it has no avatar hash and the user might still have a legacy picture
+                            MemberSummary summary = conv.getMemberSummary(message.getSenderUsername());
+                            Task<User> sender = summary != null && summary.getAvatarHash() != null
+                                    ? Tasks.forResult(summary.toUser(message.getSenderUsername()))
+                                    : UserRepository.getInstance().get(message.getSenderUsername());
+                            sender
+                                    .addOnSuccessListener(otherUser -> {
+                                        Log.d(TAG, "Loaded other user: " + otherUser.getName());
+                                        int iconSize = getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+                                        AvatarLoader.getInstance().getAvatar(otherUser, iconSize).addOnCompleteListener(avatar -> {
+                                            showMessageNotification(getBaseContext(),
+                                                    avatar.isSuccessful() ? avatar.getResult() : null,
+                                                    otherUser.getUsername(),
+                                                    otherUser.getName(),
+                                                    message.getMessage(),
+                                                    conv);
+                                        });
+                                    })
+                                    .addOnFailureListener(err -> {
+                                        Log.e(TAG, "Failed to load other user for message listener", err);
+                                    });
+
+                            deliveryAcks.acknowledge(conv.getId(), message.getId());
+                        }
+                    }
+
+                    // One incremental pull per batch keeps local history and search current
+                    if (incoming) {
+                        SyncEngine.getInstance().syncIfTracked(conv.getId())
+                                .addOnFailureListener(err -> Log.w(TAG, "Background sync failed for conv: " + conv.getId(), err));
+                    }
+                });
+        messageListeners.put(conversationId, listener);
+        Log.d(TAG, "Added listener for conversation: " + conversationId);
+    }
+
     public void showMessageNotification(Context context, Bitmap userProfilePic, String username, String actualName, String message, Conversation conversation) {
         // Notification channel ID
         String MESSAGE_CHANNEL_ID = "chat_message_channel";
@@ -202,22 +257,21 @@ public class MessageListenerService extends Service {
 
     @Override
     public void onDestroy() {
-        for (ListenerRegistration listener : listeners) {
-            if (listener != null) {
-                listener.remove();
-            }
+        if (conversationsRegistration != null) {
+            conversationsRegistration.remove();
+            conversationsRegistration = null;
+        }
+        for (ListenerRegistration listener : messageListeners.values()) {
+            listener.remove();
+        }
+        messageListeners.clear();
+
+        deliveryAcks.flushAll();
+        if (BuildConfig.DEBUG) {
+            deliveryAcks.logStats();
         }
 
         Log.d(TAG, "Service Destroyed");
         super.onDestroy();
     }
-
-    // Helpers
-    public static Bitmap base64ToBitmap(String base64Str) {
-        if (base64Str == null) {
-            return null;
-        }
-        byte[] decodedBytes = Base64.decode(base64Str, Base64.DEFAULT);
-        return BitmapFactory.decodeByteArray(decodedBytes, 0, decodedBytes.length);
-    }
 }
@@ -1,9 +1,6 @@
 package com.avnishgamedev.moodchat;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
-import android.util.Base64;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -11,13 +8,19 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import androidx.annotation.NonNull;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.card.MaterialCardView;
 
-import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
+import java.util.Objects;
 
 public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHolder> {
     private static final int VIEW_TYPE_SENT = 1;
@@ -27,6 +30,8 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
         TextView tvMessage;
         TextView tvTimestamp;
         TextView tvStatus;
+        TextView tvDay;
+        MaterialCardView mcvMessage;
 
         public ViewHolder(View itemView) {
             super(itemView);
@@ -35,119 +40,256 @@ public class MessagesAdapter extends RecyclerView.Adapter<MessagesAdapter.ViewHo
             tvMessage = itemView.findViewById(R.id.tvMessage);
             tvTimestamp = itemView.findViewById(R.id.tvTimestamp);
             tvStatus = itemView.findViewById(R.id.tvStatus); // May be null for received messages
-
-            Log.d("ViewHolder", "Created ViewHolder - tvMessage: " + (tvMessage != null) +
-                    ", tvTimestamp: " + (tvTimestamp != null));
+            tvDay = itemView.findViewById(R.id.tvDay);
+            mcvMessage = itemView.findViewById(R.id.mcvMessage);
         }
     }
 
-    private final List<Message> messages;
+    private static final String PAYLOAD_STATUS = "status";
+    private static final String PAYLOAD_COLOURS = "colours";
+
+    private static final DiffUtil.ItemCallback<MessageItem> DIFF_CALLBACK = new DiffUtil.ItemCallback<MessageItem>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull MessageItem oldItem, @NonNull MessageItem newItem) {
+            return oldItem.id.equals(newItem.id);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull MessageItem oldItem, @NonNull MessageItem newItem) {
+            // The mapper reuses unchanged items, so identity catches most rows without comparing fields
+            return oldItem == newItem || (oldItem.sameBubble(newItem) && Objects.equals(oldItem.status, newItem.status));
+        }
+
+        @Override
+        public Object getChangePayload(@NonNull MessageItem oldItem, @NonNull MessageItem newItem) {
+            // Only the status label needs rebinding when the bubble itself is unchanged
+            return oldItem.sameBubble(newItem) ? PAYLOAD_STATUS : null;
+        }
+    };
+
+    private final AsyncListDiffer<MessageItem> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
     private final User thisUser;
     private final User otherUser;
-    private int lastIndex = -1;
-    private String sentBubbleColour = "@null";
-    private String receivedBubbleColour = "@null";
-    private String senTextColour = "@null";
-    private String receivedTextColour = "@null";
-    public MessagesAdapter(List<Message> messages, User thisUser, User otherUser) {
-        this.messages = messages;
+    private static final int DEFAULT_SENT_BUBBLE_COLOUR = 0xFF8080FF;
+    private static final int DEFAULT_RECEIVED_BUBBLE_COLOUR = 0xFF2A2A40;
+
+    private int sentBubbleColour = DEFAULT_SENT_BUBBLE_COLOUR;
+    private int receivedBubbleColour = DEFAULT_RECEIVED_BUBBLE_COLOUR;
+    private int sentTextColour = Color.WHITE;
+    private int receivedTextColour = Color.WHITE;
+    // Views inflated in the background by prewarm, waiting to be wrapped in holders
+    private final ArrayDeque<View> preinflatedSent = new ArrayDeque<>();
+    private final ArrayDeque<View> preinflatedReceived = new ArrayDeque<>();
+    private TextParamsListener textParamsListener;
+    private boolean sentParamsCaptured = false;
+    private boolean receivedParamsCaptured = false;
+
+    public interface TextParamsListener {
+        void onTextParams(boolean isMine, PrecomputedTextCompat.Params params);
+    }
+
+    public MessagesAdapter(User thisUser, User otherUser) {
         this.thisUser = thisUser;
         this.otherUser = otherUser;
+        setHasStableIds(true);
+
+        // The status label only shows on the last message, so the previous last one has to drop it
+        differ.addListListener((previous, current) -> {
+            if (previous.isEmpty() || current.isEmpty()) return;
+            String previousLastId = previous.get(previous.size() - 1).id;
+            if (previousLastId.equals(current.get(current.size() - 1).id)) return;
+            for (int i = current.size() - 2; i >= 0; i--) {
+                if (current.get(i).id.equals(previousLastId)) {
+                    notifyItemChanged(i, PAYLOAD_STATUS);
+                    break;
+                }
+            }
+        });
+    }
+
+    // The list must not be modified after it is submitted, the diff runs on a background thread
+    public void submitList(List<MessageItem> snapshot, Runnable onCommitted) {
+        differ.submitList(snapshot, onCommitted);
+    }
+
+    // Item at an adapter position, which may lag behind the activity's list while a diff runs
+    public MessageItem getItem(int position) {
+        return differ.getCurrentList().get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return stableIdFor(differ.getCurrentList().get(position).id);
     }
 
     @Override
     public int getItemViewType(int position) {
-        if (messages.get(position).getSenderUsername().equals(UserManager.getInstance().getUser().getUsername())) {
-            return VIEW_TYPE_SENT;
-        } else {
-            return VIEW_TYPE_RECEIVED;
-        }
+        return differ.getCurrentList().get(position).isMine ? VIEW_TYPE_SENT : VIEW_TYPE_RECEIVED;
     }
 
     @Override
     public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
-        View view = LayoutInflater.from(parent.getContext()).inflate(viewType == VIEW_TYPE_SENT ? R.layout.item_container_sent_message : R.layout.item_container_received_message, parent, false);
-        return new ViewHolder(view);
+        View view = (viewType == VIEW_TYPE_SENT ? preinflatedSent : preinflatedReceived).poll();
+        if (view == null) {
+            view = LayoutInflater.from(parent.getContext()).inflate(layoutFor(viewType), parent, false);
+        }
+        ViewHolder holder = new ViewHolder(view);
+        captureTextParams(holder, viewType == VIEW_TYPE_SENT);
+        return holder;
     }
 
     @Override
-    public void onBindViewHolder(ViewHolder holder, int position) {
-        Message message = messages.get(position);
-        Log.d("MessagesAdapter", "Binding position " + position + ": " + message.getMessage());
-
-        // Set message text and timestamp
-        holder.tvMessage.setText(message.getMessage().trim());
-        holder.tvTimestamp.setText(new SimpleDateFormat("hh:mm a", Locale.getDefault()).format(message.getSentAt().toDate()));
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
 
-        // Handle last message status
-        boolean isSentMessage = message.getSenderUsername().equals(UserManager.getInstance().getUser().getUsername());
-        if (holder.getAdapterPosition() == messages.size() - 1 && isSentMessage) {
-            lastIndex = holder.getAdapterPosition();
+        MessageItem item = differ.getCurrentList().get(position);
+        for (Object payload : payloads) {
+            if (PAYLOAD_STATUS.equals(payload)) {
+                bindStatus(holder, item, position);
+            } else if (PAYLOAD_COLOURS.equals(payload)) {
+                bindColours(holder, item.isMine);
+            }
         }
+    }
 
-        // Set profile image safely
-        Bitmap profileBitmap = null;
-        if (isSentMessage) {
-            profileBitmap = base64ToBitmap(thisUser.getProfilePicture());
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        MessageItem item = differ.getCurrentList().get(position);
+
+        // Display fields are precomputed by MessageItemMapper
+        bindText(holder, item);
+        holder.tvTimestamp.setText(item.time);
+        if (item.startsDay()) {
+            holder.tvDay.setVisibility(View.VISIBLE);
+            holder.tvDay.setText(item.dayLabel);
         } else {
-            profileBitmap = base64ToBitmap(otherUser.getProfilePicture());
+            holder.tvDay.setVisibility(View.GONE);
         }
-        if (profileBitmap != null) {
-            holder.ivProfile.setImageBitmap(profileBitmap);
+
+        // Set profile image safely
+        User sender = item.isMine ? thisUser : otherUser;
+        AvatarLoader.getInstance().load(holder.ivProfile, sender, R.drawable.ic_person);
+
+        bindColours(holder, item.isMine);
+        bindStatus(holder, item, position);
+    }
+
+    private void bindText(ViewHolder holder, MessageItem item) {
+        if (item.precomputedText != null) {
+            try {
+                TextViewCompat.setPrecomputedText(holder.tvMessage, item.precomputedText);
+                return;
+            } catch (IllegalArgumentException e) {
+                // Params no longer match the view, e.g. after a font scale change
+                Log.w("MessagesAdapter", "Precomputed text doesn't match view, laying out on bind", e);
+            }
         }
+        holder.tvMessage.setText(item.text);
+    }
 
+    private void bindColours(ViewHolder holder, boolean isSentMessage) {
         // Set bubble colors on the MaterialCardView instead of TextView
-        MaterialCardView cardView = holder.itemView.findViewById(R.id.mcvMessage);
-        if (cardView != null) {
-            if (!sentBubbleColour.equals("@null") && !receivedBubbleColour.equals("@null")) {
-                String bubbleColor = isSentMessage ? sentBubbleColour : receivedBubbleColour;
-                String textColor = isSentMessage ? senTextColour : receivedTextColour;
-
-                cardView.setCardBackgroundColor(Color.parseColor(bubbleColor));
-                holder.tvMessage.setTextColor(Color.parseColor(textColor));
-            } else {
-                // Set default colors
-                if (isSentMessage) {
-                    cardView.setCardBackgroundColor(Color.parseColor("#8080FF"));
-                    holder.tvMessage.setTextColor(Color.WHITE);
-                } else {
-                    cardView.setCardBackgroundColor(Color.parseColor("#2A2A40"));
-                    holder.tvMessage.setTextColor(Color.WHITE);
-                }
-            }
+        if (holder.mcvMessage != null) {
+            holder.mcvMessage.setCardBackgroundColor(isSentMessage ? sentBubbleColour : receivedBubbleColour);
+            holder.tvMessage.setTextColor(isSentMessage ? sentTextColour : receivedTextColour);
         }
+    }
 
-        // Handle status text for sent messages only
-        if (holder.tvStatus != null && isSentMessage) {
-            if (holder.getAdapterPosition() == lastIndex) {
+    private void bindStatus(ViewHolder holder, MessageItem item, int position) {
+        // Handle status text for sent messages only, and only on the last message
+        if (holder.tvStatus != null && item.isMine) {
+            if (position == getItemCount() - 1) {
                 holder.tvStatus.setVisibility(View.VISIBLE);
-                holder.tvStatus.setText(message.getStatus());
+                holder.tvStatus.setText(item.status);
             } else {
                 holder.tvStatus.setVisibility(View.GONE);
             }
         }
     }
 
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        AvatarLoader.getInstance().cancel(holder.ivProfile);
+    }
+
     @Override
     public int getItemCount() {
-        return messages.size();
+        return differ.getCurrentList().size();
+    }
+
+    // Inflates countPerType holders of each kind off the main thread and parks them in the
+    // RecyclerView's pool, so the first layout of the conversation doesn't inflate anything
+    public void prewarm(RecyclerView recyclerView, int countPerType) {
+        RecyclerView.RecycledViewPool pool = recyclerView.getRecycledViewPool();
+        pool.setMaxRecycledViews(VIEW_TYPE_SENT, countPerType);
+        pool.setMaxRecycledViews(VIEW_TYPE_RECEIVED, countPerType);
+
+        // LayoutInflater isn't thread safe, the background thread gets its own copy
+        LayoutInflater inflater = LayoutInflater.from(recyclerView.getContext()).cloneInContext(recyclerView.getContext());
+        AppExecutors.decode().execute(() -> {
+            List<View> sent = new ArrayList<>(countPerType);
+            List<View> received = new ArrayList<>(countPerType);
+            try {
+                for (int i = 0; i < countPerType; i++) {
+                    sent.add(inflater.inflate(layoutFor(VIEW_TYPE_SENT), recyclerView, false));
+                    received.add(inflater.inflate(layoutFor(VIEW_TYPE_RECEIVED), recyclerView, false));
+                }
+            } catch (RuntimeException e) {
+                // Some views insist on the main thread, whatever is missing is inflated on demand
+                Log.w("MessagesAdapter", "Background inflation failed", e);
+            }
+
+            AppExecutors.main().execute(() -> {
+                preinflatedSent.addAll(sent);
+                preinflatedReceived.addAll(received);
+                for (int i = 0; i < sent.size(); i++) {
+                    pool.putRecycledView(createViewHolder(recyclerView, VIEW_TYPE_SENT));
+                }
+                for (int i = 0; i < received.size(); i++) {
+                    pool.putRecycledView(createViewHolder(recyclerView, VIEW_TYPE_RECEIVED));
+                }
+            });
+        });
+    }
+
+    // Lets the mapper precompute text layout with the same params as the bubbles
+    public void setTextParamsListener(TextParamsListener listener) {
+        this.textParamsListener = listener;
     }
 
     // Helpers
-    public static Bitmap base64ToBitmap(String base64Str) {
-        if (base64Str == null) {
-            return null;
+    private static int layoutFor(int viewType) {
+        return viewType == VIEW_TYPE_SENT ? R.layout.item_container_sent_message : R.layout.item_container_received_message;
+    }
+
+    private void captureTextParams(ViewHolder holder, boolean isMine) {
+        if (textParamsListener == null || (isMine ? sentParamsCaptured : receivedParamsCaptured)) return;
+        if (isMine) {
+            sentParamsCaptured = true;
+        } else {
+            receivedParamsCaptured = true;
+        }
+        textParamsListener.onTextParams(isMine, TextViewCompat.getTextMetricsParams(holder.tvMessage));
+    }
+
+    // 64-bit FNV-1a of the Firestore document id, random 20 character ids make collisions negligible
+    private static long stableIdFor(String documentId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < documentId.length(); i++) {
+            hash ^= documentId.charAt(i);
+            hash *= 0x100000001b3L;
         }
-        byte[] decodedBytes = Base64.decode(base64Str, Base64.DEFAULT);
-        return BitmapFactory.decodeByteArray(decodedBytes, 0, decodedBytes.length);
+        return hash;
     }
 
-    public void setBubbleColours(String sentBubbleColour, String receivedBubbleColour, String senTextColour, String receivedTextColour) {
-        Log.d("MessagesAdapter", "setBubbleColours: " + sentBubbleColour + " " + receivedBubbleColour + " " + senTextColour + " " + receivedTextColour);
+    public void setBubbleColours(int sentBubbleColour, int receivedBubbleColour, int sentTextColour, int receivedTextColour) {
         this.sentBubbleColour = sentBubbleColour;
         this.receivedBubbleColour = receivedBubbleColour;
-        this.senTextColour = senTextColour;
+        this.sentTextColour = sentTextColour;
         this.receivedTextColour = receivedTextColour;
-        notifyDataSetChanged();
+        notifyItemRangeChanged(0, getItemCount(), PAYLOAD_COLOURS);
     }
-}
+}
\ No newline at end of file
@@ -1,14 +1,19 @@
 package com.avnishgamedev.moodchat;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.ImageDecoder;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.media.ExifInterface;
 import android.media.ThumbnailUtils;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
-import android.provider.MediaStore;
 import android.text.InputType;
-import android.util.Base64;
 import android.util.Log;
 import android.widget.Button;
 import android.widget.EditText;
@@ -22,12 +27,14 @@ import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.PickVisualMediaRequest;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.google.android.material.snackbar.Snackbar;
 import com.google.android.material.textfield.TextInputEditText;
@@ -39,8 +46,8 @@ import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.auth.UserInfo;
 import com.google.firebase.firestore.FirebaseFirestore;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.Locale;
 
@@ -129,9 +136,7 @@ public class ProfileActivity extends AppCompatActivity {
         etName.setText(u.getName());
         etUsername.setText(u.getUsername());
         etEmail.setText(u.getEmail());
-        String base64ProfilePicture = u.getProfilePicture();
-        if (base64ProfilePicture != null)
-            ivProfilePic.setImageBitmap(base64ToBitmap(base64ProfilePicture));
+        AvatarLoader.getInstance().load(ivProfilePic, u, R.drawable.ic_person);
         tvRegisteredOn.setText(new SimpleDateFormat("dd MMMM yyyy hh:mm a", Locale.getDefault()).format(u.getRegisteredOn().toDate()));
     }
 
@@ -141,12 +146,18 @@ public class ProfileActivity extends AppCompatActivity {
                 .build());
     }
     private void handleSelectedImage(Uri uri) {
-        try {
-            updatedProfilePic = getCenterSquareBitmapFromUri(this, uri);
-            ivProfilePic.setImageBitmap(updatedProfilePic);
-        } catch (IOException e) {
-            Snackbar.make(findViewById(android.R.id.content), "Image not compatible!", Snackbar.LENGTH_SHORT).show();
-        }
+        setLoading(true);
+        decodeCenterSquare(this, uri, AvatarRendition.LARGE.sizePx)
+                .addOnSuccessListener(this, bitmap -> {
+                    updatedProfilePic = bitmap;
+                    AvatarLoader.getInstance().cancel(ivProfilePic);
+                    ivProfilePic.setImageBitmap(updatedProfilePic);
+                })
+                .addOnFailureListener(this, e -> {
+                    Log.e(TAG, "Failed to decode selected image:", e);
+                    Snackbar.make(findViewById(android.R.id.content), "Image not compatible!", Snackbar.LENGTH_SHORT).show();
+                })
+                .addOnCompleteListener(this, task -> setLoading(false));
     }
 
     private void updateProfile() {
@@ -158,10 +169,28 @@ public class ProfileActivity extends AppCompatActivity {
         if (!u.getName().equals(etName.getText().toString()))
             u.setName(etName.getText().toString());
 
-        if (updatedProfilePic != null)
-            u.setProfilePicture(bitmapToBase64(updatedProfilePic, 100));
-
         setLoading(true);
+        if (updatedProfilePic == null) {
+            saveUser(u);
+            return;
+        }
+
+        // Upload the renditions first, the user document only references them by hash
+        AvatarRendition.uploadAll(updatedProfilePic)
+                .addOnSuccessListener(renditions -> {
+                    u.setProfilePictureRenditions(renditions);
+                    u.setProfilePictureHash(renditions.get(AvatarRendition.LARGE.key));
+                    u.setProfilePicture(null);
+                    saveUser(u);
+                })
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Failed to upload profile picture:", e);
+                    Snackbar.make(findViewById(android.R.id.content), "Failed to update profile: " + e.getLocalizedMessage(), Snackbar.LENGTH_SHORT).show();
+                    setLoading(false);
+                });
+    }
+
+    private void saveUser(User u) {
         UserManager.getInstance().createOrUpdateUserDocument(u)
                 .addOnSuccessListener(aVoid -> {
                     Snackbar.make(findViewById(android.R.id.content), "Profile updated successfully", Snackbar.LENGTH_SHORT).show();
@@ -174,31 +203,120 @@ public class ProfileActivity extends AppCompatActivity {
     }
 
     // --------------------- Helpers -------------------------
-    public Bitmap getCenterSquareBitmapFromUri(Context context, Uri imageUri) throws IOException {
-        // Decode the bitmap from the Uri
-        Bitmap srcBmp = MediaStore.Images.Media.getBitmap(context.getContentResolver(), imageUri);
+    // Decodes only the centre square of the picked image at roughly targetPx, so peak
+    // memory depends on the output size instead of the camera resolution
+    public static Task<Bitmap> decodeCenterSquare(Context context, Uri imageUri, int targetPx) {
+        ContentResolver resolver = context.getContentResolver();
+        return Tasks.call(AppExecutors.io(), () -> {
+            Bitmap square;
+            try (InputStream in = resolver.openInputStream(imageUri)) {
+                square = decodeCenterRegion(in, targetPx);
+            } catch (IOException e) {
+                // Formats the region decoder doesn't support
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                    // ImageDecoder already applies the EXIF orientation
+                    return decodeCenterWithImageDecoder(resolver, imageUri, targetPx);
+                }
+                square = decodeCenterFallback(resolver, imageUri, targetPx);
+            }
+            if (square == null) {
+                throw new IOException("Failed to decode image from URI: " + imageUri);
+            }
 
-        int width = srcBmp.getWidth();
-        int height = srcBmp.getHeight();
+            try (InputStream in = resolver.openInputStream(imageUri)) {
+                return applyExifOrientation(square, new ExifInterface(in));
+            } catch (IOException e) {
+                return square;
+            }
+        });
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap decodeCenterRegion(InputStream in, int targetPx) throws IOException {
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(in, false);
+        try {
+            int width = decoder.getWidth();
+            int height = decoder.getHeight();
+            int size = Math.min(width, height);
+            Rect region = new Rect((width - size) / 2, (height - size) / 2, (width + size) / 2, (height + size) / 2);
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSizeFor(size, targetPx);
+            Bitmap sampled = decoder.decodeRegion(region, options);
+            return scaleDown(sampled, targetPx);
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.P)
+    private static Bitmap decodeCenterWithImageDecoder(ContentResolver resolver, Uri imageUri, int targetPx) throws IOException {
+        ImageDecoder.Source source = ImageDecoder.createSource(resolver, imageUri);
+        return ImageDecoder.decodeBitmap(source, (decoder, info, src) -> {
+            int width = info.getSize().getWidth();
+            int height = info.getSize().getHeight();
+            float scale = Math.min(1f, (float) targetPx / Math.min(width, height));
+            int scaledWidth = Math.round(width * scale);
+            int scaledHeight = Math.round(height * scale);
+            int size = Math.min(scaledWidth, scaledHeight);
+            decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+            decoder.setTargetSize(scaledWidth, scaledHeight);
+            decoder.setCrop(new Rect((scaledWidth - size) / 2, (scaledHeight - size) / 2, (scaledWidth + size) / 2, (scaledHeight + size) / 2));
+        });
+    }
 
-        // If already square, return original
-        if (width == height) {
-            return srcBmp;
+    private static Bitmap decodeCenterFallback(ContentResolver resolver, Uri imageUri, int targetPx) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = resolver.openInputStream(imageUri)) {
+            BitmapFactory.decodeStream(in, null, options);
         }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSizeFor(Math.min(options.outWidth, options.outHeight), targetPx);
+        Bitmap sampled;
+        try (InputStream in = resolver.openInputStream(imageUri)) {
+            sampled = BitmapFactory.decodeStream(in, null, options);
+        }
+        if (sampled == null) return null;
 
-        // Use ThumbnailUtils for center cropping (handles memory better)
-        int size = Math.min(width, height);
-        return ThumbnailUtils.extractThumbnail(srcBmp, size, size, ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+        int size = Math.min(sampled.getWidth(), sampled.getHeight());
+        return scaleDown(ThumbnailUtils.extractThumbnail(sampled, size, size, ThumbnailUtils.OPTIONS_RECYCLE_INPUT), targetPx);
     }
-    public static String bitmapToBase64(Bitmap bitmap, int quality) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, baos);
-        byte[] bytes = baos.toByteArray();
-        return Base64.encodeToString(bytes, Base64.NO_WRAP);
+
+    private static int sampleSizeFor(int shortSide, int targetPx) {
+        int sampleSize = 1;
+        while (shortSide / (sampleSize * 2) >= targetPx) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
     }
-    public static Bitmap base64ToBitmap(String base64Str) {
-        byte[] decodedBytes = Base64.decode(base64Str, Base64.DEFAULT);
-        return BitmapFactory.decodeByteArray(decodedBytes, 0, decodedBytes.length);
+
+    private static Bitmap scaleDown(Bitmap square, int targetPx) {
+        if (square == null || square.getWidth() <= targetPx) {
+            return square;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(square, targetPx, targetPx, true);
+        square.recycle();
+        return scaled;
+    }
+
+    private static Bitmap applyExifOrientation(Bitmap bitmap, ExifInterface exif) {
+        Matrix matrix = new Matrix();
+        switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+            case ExifInterface.ORIENTATION_ROTATE_90: matrix.postRotate(90); break;
+            case ExifInterface.ORIENTATION_ROTATE_180: matrix.postRotate(180); break;
+            case ExifInterface.ORIENTATION_ROTATE_270: matrix.postRotate(270); break;
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL: matrix.postScale(-1, 1); break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL: matrix.postScale(1, -1); break;
+            case ExifInterface.ORIENTATION_TRANSPOSE: matrix.postRotate(90); matrix.postScale(-1, 1); break;
+            case ExifInterface.ORIENTATION_TRANSVERSE: matrix.postRotate(270); matrix.postScale(-1, 1); break;
+            default: return bitmap;
+        }
+        Bitmap oriented = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (oriented != bitmap) {
+            bitmap.recycle();
+        }
+        return oriented;
     }
 
     private void showChangePasswordDialog() {
@@ -0,0 +1,129 @@
+package com.avnishgamedev.moodchat;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.view.View;
+import android.widget.EditText;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import androidx.annotation.Nullable;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.google.android.gms.tasks.Tasks;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Searches message history already stored on the device, so it works offline and
+ * without reading any documents from Firestore.
+ */
+public class SearchActivity extends AppCompatActivity {
+    private static final String TAG = "SearchActivity";
+
+    private static final int MAX_RESULTS = 50;
+    // Wait for typing to pause before querying the index
+    private static final long QUERY_DEBOUNCE_MS = 250;
+
+    // Views
+    ImageView ivBack;
+    EditText etQuery;
+    TextView tvEmpty;
+    RecyclerView rvResults;
+    SearchResultsAdapter adapter;
+
+    private final Runnable runQuery = this::runQuery;
+    int queryGeneration = 0;
+
+    @Override
+    protected void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_search);
+
+        ivBack = findViewById(R.id.ivBack);
+        etQuery = findViewById(R.id.etQuery);
+        tvEmpty = findViewById(R.id.tvEmpty);
+        rvResults = findViewById(R.id.rvResults);
+
+        adapter = new SearchResultsAdapter((parent, view, position, id) -> openResult(adapter.getResult(position)));
+        rvResults.setAdapter(adapter);
+
+        ivBack.setOnClickListener(v -> finish());
+        etQuery.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                AppExecutors.mainHandler().removeCallbacks(runQuery);
+                AppExecutors.mainHandler().postDelayed(runQuery, QUERY_DEBOUNCE_MS);
+            }
+        });
+        etQuery.requestFocus();
+    }
+
+    @Override
+    protected void onDestroy() {
+        AppExecutors.mainHandler().removeCallbacks(runQuery);
+        super.onDestroy();
+    }
+
+    private void runQuery() {
+        String query = etQuery.getText().toString().trim();
+        int generation = ++queryGeneration;
+        if (query.isEmpty()) {
+            showResults(Collections.emptyList(), false);
+            return;
+        }
+
+        Tasks.call(AppExecutors.io(), () -> {
+            LocalStore store = LocalStore.getInstance();
+            return store != null ? store.search(query, MAX_RESULTS) : Collections.<LocalStore.SearchResult>emptyList();
+        }).addOnCompleteListener(this, task -> {
+            // A newer query has been started since
+            if (generation != queryGeneration) return;
+            if (!task.isSuccessful()) {
+                Log.e(TAG, "Search failed for " + query, task.getException());
+                showResults(Collections.emptyList(), true);
+                return;
+            }
+            showResults(task.getResult(), true);
+        });
+    }
+
+    private void showResults(List<LocalStore.SearchResult> results, boolean searched) {
+        adapter.setResults(results);
+        tvEmpty.setVisibility(searched && results.isEmpty() ? View.VISIBLE : View.GONE);
+    }
+
+    private void openResult(LocalStore.SearchResult result) {
+        String conversationId = result.conversationId;
+        Tasks.call(AppExecutors.io(), () -> {
+            LocalStore store = LocalStore.getInstance();
+            return store != null ? store.getConversation(conversationId) : null;
+        }).addOnCompleteListener(this, task -> {
+            Conversation conversation = task.isSuccessful() ? task.getResult() : null;
+            if (conversation == null) {
+                // Not in the stored list yet, the conversation listener fills in the rest once it opens
+                conversation = new Conversation();
+                conversation.setId(conversationId);
+                conversation.setMembers(Arrays.asList(conversationId.split("_")));
+            }
+
+            Intent i = new Intent(SearchActivity.this, ConversationActivity.class);
+            i.putExtra("conversation", (Serializable) conversation);
+            i.putExtra("anchorMessageId", result.message.getId());
+            startActivity(i);
+        });
+    }
+}
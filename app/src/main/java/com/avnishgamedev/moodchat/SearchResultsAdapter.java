@@ -0,0 +1,68 @@
+package com.avnishgamedev.moodchat;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class SearchResultsAdapter extends RecyclerView.Adapter<SearchResultsAdapter.ViewHolder> {
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        TextView tvSender;
+        TextView tvTime;
+        TextView tvMessage;
+        public ViewHolder(View itemView) {
+            super(itemView);
+
+            tvSender = itemView.findViewById(R.id.tvSender);
+            tvTime = itemView.findViewById(R.id.tvTime);
+            tvMessage = itemView.findViewById(R.id.tvMessage);
+        }
+    }
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("dd MMM yyyy, hh:mm a", Locale.getDefault());
+    private List<LocalStore.SearchResult> results = new ArrayList<>();
+    private AdapterView.OnItemClickListener listener;
+    public SearchResultsAdapter(AdapterView.OnItemClickListener listener) {
+        this.listener = listener;
+    }
+
+    public void setResults(List<LocalStore.SearchResult> results) {
+        this.results = results;
+        notifyDataSetChanged();
+    }
+
+    public LocalStore.SearchResult getResult(int position) {
+        return results.get(position);
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_search_result, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        Message message = results.get(position).message;
+        holder.itemView.setOnClickListener(v -> listener.onItemClick(null, v, holder.getBindingAdapterPosition(), 0));
+
+        holder.tvSender.setText(message.getSenderName());
+        holder.tvMessage.setText(message.getMessage());
+        holder.tvTime.setText(message.getSentAt() != null ? dateFormat.format(message.getSentAt().toDate()) : "");
+    }
+
+    @Override
+    public int getItemCount() {
+        return results.size();
+    }
+}
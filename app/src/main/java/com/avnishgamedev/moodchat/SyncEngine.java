@@ -0,0 +1,157 @@
+package com.avnishgamedev.moodchat;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps LocalStore in step with Firestore. Each conversation has a cursor at the
+ * newest message pulled so far, and a sync only asks for documents after it, so
+ * its cost follows new traffic rather than history length. Messages that arrive
+ * through listeners or paging are recorded here too, and local sends stay pending
+ * until the server is known to have them.
+ */
+public class SyncEngine {
+    private static final String TAG = "SyncEngine";
+
+    private static final int SYNC_PAGE_SIZE = 200;
+
+    private static volatile SyncEngine instance;
+
+    private SyncEngine() {}
+
+    public static SyncEngine getInstance() {
+        if (instance == null) {
+            synchronized (SyncEngine.class) {
+                if (instance == null) {
+                    instance = new SyncEngine();
+                }
+            }
+        }
+        return instance;
+    }
+
+    // Pulls everything after the stored cursor, or just the newest page on the first sync.
+    // Resolves to the pulled messages in ascending order.
+    public Task<List<Message>> syncConversation(String conversationId, int firstPageSize) {
+        LocalStore store = LocalStore.getInstance();
+        if (store == null) {
+            return ConversationHelpers.getLatestMessages(conversationId, firstPageSize).continueWith(task -> toMessages(task.getResult()));
+        }
+
+        return Tasks.call(AppExecutors.io(), () -> Collections.singletonList(store.getSyncCursor(conversationId)))
+                .continueWithTask(task -> {
+                    Message cursor = task.getResult().get(0);
+                    if (cursor == null) {
+                        return ConversationHelpers.getLatestMessages(conversationId, firstPageSize)
+                                .continueWith(AppExecutors.io(), page -> {
+                                    List<Message> messages = toMessages(page.getResult());
+                                    store(conversationId, messages);
+                                    return messages;
+                                });
+                    }
+                    return pullAfter(conversationId, cursor, new ArrayList<>());
+                });
+    }
+
+    // Pulls new messages for conversations that already have local history, e.g. when the
+    // background listener sees traffic, so the store and its search index stay current
+    public Task<List<Message>> syncIfTracked(String conversationId) {
+        LocalStore store = LocalStore.getInstance();
+        if (store == null) {
+            return Tasks.forResult(Collections.emptyList());
+        }
+        return Tasks.call(AppExecutors.io(), () -> Collections.singletonList(store.getSyncCursor(conversationId)))
+                .continueWithTask(task -> {
+                    Message cursor = task.getResult().get(0);
+                    if (cursor == null) {
+                        return Tasks.forResult(Collections.<Message>emptyList());
+                    }
+                    return pullAfter(conversationId, cursor, new ArrayList<>());
+                });
+    }
+
+    // Records messages delivered by a listener or a page read
+    public void recordMessages(String conversationId, List<Message> messages) {
+        LocalStore store = LocalStore.getInstance();
+        if (store == null || messages.isEmpty()) return;
+        List<Message> copy = new ArrayList<>(messages);
+        AppExecutors.io().execute(() -> store(conversationId, copy));
+    }
+
+    public void recordRemoved(String messageId) {
+        LocalStore store = LocalStore.getInstance();
+        if (store == null) return;
+        AppExecutors.io().execute(() -> store.deleteMessage(messageId));
+    }
+
+    // Clears the pending flag of sends the server has, Firestore's own write queue delivers the rest
+    public Task<Void> reconcilePending() {
+        LocalStore store = LocalStore.getInstance();
+        if (store == null) {
+            return Tasks.forResult(null);
+        }
+
+        return Tasks.call(AppExecutors.io(), store::getPendingMessages).continueWithTask(task -> {
+            List<Task<Void>> sends = new ArrayList<>();
+            for (LocalStore.PendingMessage pending : task.getResult()) {
+                sends.add(ConversationHelpers.settlePendingMessage(pending.conversationId, pending.message)
+                        .addOnSuccessListener(AppExecutors.io(), settled -> {
+                            if (settled) {
+                                store.clearPending(pending.message.getId());
+                            }
+                        })
+                        .addOnFailureListener(e -> Log.w(TAG, "Couldn't settle pending message " + pending.message.getId(), e))
+                        .continueWith(settle -> null));
+            }
+            return Tasks.whenAll(sends);
+        });
+    }
+
+    // Helpers
+    private Task<List<Message>> pullAfter(String conversationId, Message cursor, List<Message> pulled) {
+        return ConversationHelpers.getMessagesAfter(conversationId, cursor, SYNC_PAGE_SIZE)
+                .continueWithTask(AppExecutors.io(), page -> {
+                    List<Message> messages = toMessages(page.getResult());
+                    store(conversationId, messages);
+                    pulled.addAll(messages);
+                    if (messages.size() < SYNC_PAGE_SIZE) {
+                        return Tasks.forResult(pulled);
+                    }
+                    return pullAfter(conversationId, messages.get(messages.size() - 1), pulled);
+                });
+    }
+
+    private static void store(String conversationId, List<Message> messages) {
+        LocalStore store = LocalStore.getInstance();
+        if (store == null || messages.isEmpty()) return;
+        store.putMessages(conversationId, messages);
+
+        Message newest = messages.get(0);
+        for (Message message : messages) {
+            if (ConversationHelpers.compareMessages(message, newest) > 0) {
+                newest = message;
+            }
+        }
+        store.advanceSyncCursor(conversationId, newest);
+    }
+
+    static List<Message> toMessages(QuerySnapshot snap) {
+        List<Message> result = new ArrayList<>(snap.size());
+        for (DocumentSnapshot d : snap.getDocuments()) {
+            Message m = d.toObject(Message.class);
+            if (m != null) {
+                m.setId(d.getId());
+                result.add(m);
+            }
+        }
+        return result;
+    }
+}
@@ -3,6 +3,8 @@ package com.avnishgamedev.moodchat;
 import com.google.firebase.Timestamp;
 import com.google.firebase.firestore.DocumentId;
 
+import java.util.Map;
+
 public class User {
     @DocumentId
     private String documentId;
@@ -10,6 +12,8 @@ public class User {
     private String name;
     private boolean online;
     private String profilePicture;
+    private String profilePictureHash;
+    private Map<String, String> profilePictureRenditions;
     private String username;
     private Timestamp lastSeen;
     private Timestamp registeredOn;
@@ -60,6 +64,20 @@ public class User {
         this.profilePicture = profilePicture;
     }
 
+    public String getProfilePictureHash() {
+        return profilePictureHash;
+    }
+    public void setProfilePictureHash(String profilePictureHash) {
+        this.profilePictureHash = profilePictureHash;
+    }
+
+    public Map<String, String> getProfilePictureRenditions() {
+        return profilePictureRenditions;
+    }
+    public void setProfilePictureRenditions(Map<String, String> profilePictureRenditions) {
+        this.profilePictureRenditions = profilePictureRenditions;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -83,13 +83,17 @@ public class UserManager {
     }
 
     public void setUserOnlineStatus(boolean online) {
-        Map<String, Object> updates = Map.of("online", online, "lastSeen", Timestamp.now());
+        Timestamp now = Timestamp.now();
+        Map<String, Object> updates = Map.of("online", online, "lastSeen", now);
         if (user != null) {
             db.collection("users").document(user.getDocumentId()).set(updates, SetOptions.merge())
                     .addOnFailureListener(e -> {
                         Log.e(TAG, "Failed to update user online status: " + e.getLocalizedMessage());
                     });
             pendingUserOnlineStatusUpdate = false;
+
+            user.setOnline(online);
+            user.setLastSeen(now);
         } else {
             pendingUserOnlineStatusUpdate = online;
         }
@@ -103,6 +107,9 @@ public class UserManager {
                     .continueWithTask(task -> {
                         if (task.isSuccessful()) {
                             user = u;
+                            // Name and picture show on every conversation row, so every summary is rewritten
+                            ConversationHelpers.updateMemberSummaries(u)
+                                    .addOnFailureListener(e -> Log.w(TAG, "Failed to fan out profile update", e));
                             return Tasks.forResult(null);
                         }
                         return Tasks.forException(task.getException());
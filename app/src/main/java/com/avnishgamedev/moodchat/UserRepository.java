@@ -0,0 +1,219 @@
+package com.avnishgamedev.moodchat;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide cache of User profiles keyed by username, shared by every screen and
+ * the notification service. Cached users are served synchronously; entries older
+ * than the TTL are still served but refreshed in the background, and concurrent
+ * requests for the same username share one query.
+ *
+ * Misses are not queried one by one: usernames requested in the same main thread
+ * pass (e.g. every row bound in one layout) are collected and resolved together with
+ * chunked whereIn queries.
+ */
+public class UserRepository {
+    private static final String TAG = "UserRepository";
+
+    static final int MAX_USERS = 256;
+    static final long TTL_MS = 5 * 60 * 1000;
+
+    private static volatile UserRepository instance;
+
+    // Resolves up to ConversationHelpers.MAX_IN_VALUES usernames in one query
+    interface Fetcher {
+        Task<List<User>> fetch(List<String> usernames);
+    }
+
+    private final Fetcher fetcher;
+    // Runs batch flushes and query callbacks, the main thread in the app
+    private final Executor main;
+    private final LongSupplier clock;
+
+    // Access ordered, so the least recently used user is evicted first
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_USERS;
+        }
+    };
+    // username -> query already on its way, or queued for the next batch
+    private final Map<String, Task<User>> inFlight = new HashMap<>();
+    // Usernames waiting for the next flush
+    private final Map<String, TaskCompletionSource<User>> batch = new LinkedHashMap<>();
+    private final Runnable flushBatch = this::flushBatch;
+
+    // Metrics
+    private long hits = 0;
+    private long misses = 0;
+    private long fetches = 0;
+    private long queries = 0;
+
+    private static class Entry {
+        final User user;
+        final long fetchedAt;
+
+        Entry(User user, long fetchedAt) {
+            this.user = user;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private UserRepository() {
+        this(ConversationHelpers::getUsersByUsernames, AppExecutors.main(), SystemClock::elapsedRealtime);
+    }
+
+    UserRepository(Fetcher fetcher, Executor main, LongSupplier clock) {
+        this.fetcher = fetcher;
+        this.main = main;
+        this.clock = clock;
+    }
+
+    public static UserRepository getInstance() {
+        if (instance == null) {
+            synchronized (UserRepository.class) {
+                if (instance == null) {
+                    instance = new UserRepository();
+                }
+            }
+        }
+        return instance;
+    }
+
+    // The cached user, or null. A stale entry is returned as is and refreshed in the background
+    public synchronized User getCached(String username) {
+        Entry entry = cache.get(username);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if (isStale(entry)) {
+            fetch(username);
+        }
+        return entry.user;
+    }
+
+    // Completes immediately for a fresh cached user, otherwise joins or starts a query
+    public synchronized Task<User> get(String username) {
+        Entry entry = cache.get(username);
+        if (entry != null && !isStale(entry)) {
+            hits++;
+            return Tasks.forResult(entry.user);
+        }
+        misses++;
+        return fetch(username);
+    }
+
+    // Warms the cache for users about to be shown, already cached or requested ones are skipped
+    public synchronized void prefetch(Collection<String> usernames) {
+        for (String username : usernames) {
+            Entry entry = cache.get(username);
+            if (entry == null || isStale(entry)) {
+                fetch(username);
+            }
+        }
+    }
+
+    // Newer copy of a user, e.g. from a snapshot listener
+    public synchronized void put(User user) {
+        if (user == null || user.getUsername() == null) return;
+        cache.put(user.getUsername(), new Entry(user, clock.getAsLong()));
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        inFlight.clear();
+        for (TaskCompletionSource<User> waiting : batch.values()) {
+            waiting.trySetException(new IllegalStateException("UserRepository cleared"));
+        }
+        batch.clear();
+    }
+
+    public synchronized void logStats() {
+        Log.d(TAG, "hits: " + hits + ", misses: " + misses + ", fetches: " + fetches + ", queries: " + queries
+                + ", cached: " + cache.size());
+    }
+
+    // Helpers
+    private boolean isStale(Entry entry) {
+        return clock.getAsLong() - entry.fetchedAt > TTL_MS;
+    }
+
+    private Task<User> fetch(String username) {
+        Task<User> pending = inFlight.get(username);
+        if (pending != null) {
+            return pending;
+        }
+
+        fetches++;
+        TaskCompletionSource<User> waiting = new TaskCompletionSource<>();
+        if (batch.isEmpty()) {
+            main.execute(flushBatch);
+        }
+        batch.put(username, waiting);
+        inFlight.put(username, waiting.getTask());
+        return waiting.getTask();
+    }
+
+    private void flushBatch() {
+        Map<String, TaskCompletionSource<User>> sending;
+        synchronized (this) {
+            sending = new HashMap<>(batch);
+            batch.clear();
+        }
+
+        List<String> usernames = new ArrayList<>(sending.keySet());
+        for (int from = 0; from < usernames.size(); from += ConversationHelpers.MAX_IN_VALUES) {
+            List<String> chunk = usernames.subList(from, Math.min(usernames.size(), from + ConversationHelpers.MAX_IN_VALUES));
+            synchronized (this) {
+                queries++;
+            }
+            fetcher.fetch(chunk)
+                    .addOnCompleteListener(main, task -> complete(chunk, sending, task));
+        }
+    }
+
+    private synchronized void complete(List<String> chunk, Map<String, TaskCompletionSource<User>> waiters, Task<List<User>> task) {
+        Map<String, User> found = new HashMap<>();
+        if (task.isSuccessful()) {
+            for (User user : task.getResult()) {
+                put(user);
+                found.put(user.getUsername(), user);
+            }
+        } else {
+            Log.w(TAG, "Failed to fetch users " + chunk, task.getException());
+        }
+
+        for (String username : chunk) {
+            TaskCompletionSource<User> waiting = waiters.get(username);
+            // Only forget the request if it hasn't been replaced, e.g. after clear()
+            if (inFlight.get(username) == waiting.getTask()) {
+                inFlight.remove(username);
+            }
+
+            User user = found.get(username);
+            if (user != null) {
+                waiting.trySetResult(user);
+            } else if (task.isSuccessful()) {
+                waiting.trySetException(new ConversationHelpers.UserNotFoundException());
+            } else {
+                waiting.trySetException(task.getException());
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.avnishgamedev.moodchat;
+
+import com.google.firebase.Timestamp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ConversationHelpersTest {
+    @Test
+    public void compareMessages_ordersBySentAt() {
+        Message older = message("b", new Timestamp(100, 0));
+        Message newer = message("a", new Timestamp(101, 0));
+
+        assertTrue(ConversationHelpers.compareMessages(older, newer) < 0);
+        assertTrue(ConversationHelpers.compareMessages(newer, older) > 0);
+    }
+
+    @Test
+    public void compareMessages_keepsNanosecondPrecision() {
+        Message older = message("b", new Timestamp(100, 999_999_998));
+        Message newer = message("a", new Timestamp(100, 999_999_999));
+
+        assertTrue(ConversationHelpers.compareMessages(older, newer) < 0);
+    }
+
+    @Test
+    public void compareMessages_breaksTiesById() {
+        Message first = message("a", new Timestamp(100, 5));
+        Message second = message("b", new Timestamp(100, 5));
+
+        assertTrue(ConversationHelpers.compareMessages(first, second) < 0);
+        assertTrue(ConversationHelpers.compareMessages(second, first) > 0);
+        assertEquals(0, ConversationHelpers.compareMessages(first, message("a", new Timestamp(100, 5))));
+    }
+
+    @Test
+    public void compareMessages_handlesTimesBeforeEpoch() {
+        Message beforeEpoch = message("a", new Timestamp(-1, 500));
+        Message atEpoch = message("b", new Timestamp(0, 0));
+
+        assertTrue(ConversationHelpers.compareMessages(beforeEpoch, atEpoch) < 0);
+    }
+
+    @Test
+    public void compareMessages_unresolvedSentAtSortsFirst() {
+        Message pending = message("z", null);
+        Message sent = message("a", new Timestamp(0, 0));
+
+        assertTrue(ConversationHelpers.compareMessages(pending, sent) < 0);
+    }
+
+    @Test
+    public void compareMessages_sortMatchesKeysetOrder() {
+        List<Message> expected = new ArrayList<>();
+        for (int second = 0; second < 20; second++) {
+            for (String id : Arrays.asList("a", "b", "c")) {
+                expected.add(message(id + second, new Timestamp(1_700_000_000L + second / 2, (second % 2) * 1000)));
+            }
+        }
+        // Same key order as the query: sentAt, then document id
+        expected.sort((a, b) -> {
+            int bySentAt = a.getSentAt().compareTo(b.getSentAt());
+            return bySentAt != 0 ? bySentAt : a.getId().compareTo(b.getId());
+        });
+
+        List<Message> shuffled = new ArrayList<>(expected);
+        Collections.shuffle(shuffled, new Random(7));
+        shuffled.sort(ConversationHelpers::compareMessages);
+
+        assertEquals(expected, shuffled);
+    }
+
+    // Helpers
+    private static Message message(String id, Timestamp sentAt) {
+        Message message = new Message("text", "alice", "Alice", sentAt, "sent");
+        message.setId(id);
+        return message;
+    }
+}
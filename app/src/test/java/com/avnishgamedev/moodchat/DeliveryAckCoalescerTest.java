@@ -0,0 +1,223 @@
+package com.avnishgamedev.moodchat;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class DeliveryAckCoalescerTest {
+    @Test
+    public void chunk_splitsAtSize() {
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 1201; i++) {
+            items.add(i);
+        }
+        List<List<Integer>> chunks = DeliveryAckCoalescer.chunk(items, 500);
+
+        assertEquals(3, chunks.size());
+        assertEquals(500, chunks.get(0).size());
+        assertEquals(500, chunks.get(1).size());
+        assertEquals(201, chunks.get(2).size());
+        assertEquals(Integer.valueOf(500), chunks.get(1).get(0));
+        assertTrue(DeliveryAckCoalescer.chunk(new ArrayList<>(), 500).isEmpty());
+    }
+
+    @Test
+    public void acknowledge_coalescesWithinWindow() {
+        FakeScheduler scheduler = new FakeScheduler();
+        RecordingCommitter committer = new RecordingCommitter(0);
+        DeliveryAckCoalescer acks = new DeliveryAckCoalescer(committer, scheduler);
+
+        acks.acknowledge("c1", "m1");
+        acks.acknowledge("c1", "m2");
+        acks.acknowledge("c1", "m1");
+        assertEquals(1, scheduler.pending.size());
+        assertEquals(DeliveryAckCoalescer.WINDOW_MS, scheduler.pending.get(0).delayMs);
+        assertTrue(committer.calls.isEmpty());
+
+        scheduler.runAll();
+        assertEquals(1, committer.calls.size());
+        assertEquals(Arrays.asList("m1", "m2"), committer.calls.get(0));
+        assertEquals(1, acks.getWritesSaved());
+    }
+
+    @Test
+    public void flush_chunksLargeBacklogs() {
+        FakeScheduler scheduler = new FakeScheduler();
+        RecordingCommitter committer = new RecordingCommitter(0);
+        DeliveryAckCoalescer acks = new DeliveryAckCoalescer(committer, scheduler);
+
+        for (int i = 0; i < 1201; i++) {
+            acks.acknowledge("c1", "m" + i);
+        }
+        acks.flushAll();
+
+        assertEquals(3, committer.calls.size());
+        assertEquals(DeliveryAckCoalescer.MAX_BATCH_OPS, committer.calls.get(0).size());
+        assertEquals(DeliveryAckCoalescer.MAX_BATCH_OPS, committer.calls.get(1).size());
+        assertEquals(201, committer.calls.get(2).size());
+        // flushAll cancels the window timer
+        for (Posted posted : scheduler.pending) {
+            assertNotEquals(DeliveryAckCoalescer.WINDOW_MS, posted.delayMs);
+        }
+    }
+
+    @Test
+    public void failedCommit_retriesWithBackoff() {
+        FakeScheduler scheduler = new FakeScheduler();
+        RecordingCommitter committer = new RecordingCommitter(1);
+        DeliveryAckCoalescer acks = new DeliveryAckCoalescer(committer, scheduler);
+
+        acks.acknowledge("c1", "m1");
+        acks.flushAll();
+        // The failure callback itself is posted, then schedules the retry
+        scheduler.runReady();
+        assertEquals(1, scheduler.pending.size());
+        assertEquals(DeliveryAckCoalescer.RETRY_BASE_MS, scheduler.pending.get(0).delayMs);
+
+        scheduler.runAll();
+        assertEquals(2, committer.calls.size());
+        assertEquals(committer.calls.get(0), committer.calls.get(1));
+    }
+
+    @Test
+    public void failedCommit_givesUpAfterMaxAttempts() {
+        FakeScheduler scheduler = new FakeScheduler();
+        RecordingCommitter committer = new RecordingCommitter(Integer.MAX_VALUE);
+        DeliveryAckCoalescer acks = new DeliveryAckCoalescer(committer, scheduler);
+
+        acks.acknowledge("c1", "m1");
+        scheduler.delays.clear();
+        acks.flushAll();
+        scheduler.runAll();
+
+        assertEquals(DeliveryAckCoalescer.MAX_ATTEMPTS, committer.calls.size());
+        assertEquals(Arrays.asList(0L, DeliveryAckCoalescer.RETRY_BASE_MS, 0L, DeliveryAckCoalescer.RETRY_BASE_MS * 2, 0L),
+                scheduler.delays);
+        // Acks given up on don't count as saved writes
+        assertEquals(0, acks.getWritesSaved());
+    }
+
+    @Test
+    public void deletedMessage_retriesWithoutIt() {
+        FakeScheduler scheduler = new FakeScheduler();
+        RecordingCommitter committer = new RecordingCommitter(0);
+        committer.deleted.add("m2");
+        DeliveryAckCoalescer acks = new DeliveryAckCoalescer(committer, scheduler);
+
+        acks.acknowledge("c1", "m1");
+        acks.acknowledge("c1", "m2");
+        acks.acknowledge("c1", "m3");
+        acks.flushAll();
+        scheduler.runAll();
+
+        assertEquals(2, committer.calls.size());
+        assertEquals(Arrays.asList("m1", "m3"), committer.calls.get(1));
+        // The retry isn't delayed, the remaining messages are known to exist
+        assertFalse(scheduler.delays.contains(DeliveryAckCoalescer.RETRY_BASE_MS));
+        assertEquals(1, acks.getWritesSaved());
+    }
+
+    @Test
+    public void allMessagesDeleted_commitsNothingMore() {
+        FakeScheduler scheduler = new FakeScheduler();
+        RecordingCommitter committer = new RecordingCommitter(0);
+        committer.deleted.add("m1");
+        DeliveryAckCoalescer acks = new DeliveryAckCoalescer(committer, scheduler);
+
+        acks.acknowledge("c1", "m1");
+        acks.flushAll();
+        scheduler.runAll();
+
+        assertEquals(1, committer.calls.size());
+        assertEquals(0, acks.getWritesSaved());
+    }
+
+    // Helpers
+    private static class RecordingCommitter implements DeliveryAckCoalescer.Committer {
+        final List<List<String>> calls = new ArrayList<>();
+        // Ids whose documents are gone, a batch containing any of them fails with NOT_FOUND
+        final Set<String> deleted = new HashSet<>();
+        private int failures;
+
+        RecordingCommitter(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public Task<Void> commit(String conversationId, List<String> messageIds) {
+            calls.add(new ArrayList<>(messageIds));
+            if (failures > 0) {
+                failures--;
+                return Tasks.forException(new Exception("commit failed"));
+            }
+            for (String id : messageIds) {
+                if (deleted.contains(id)) {
+                    return Tasks.forException(new FirebaseFirestoreException("No document to update", FirebaseFirestoreException.Code.NOT_FOUND));
+                }
+            }
+            return Tasks.forResult(null);
+        }
+
+        @Override
+        public Task<List<String>> existing(String conversationId, List<String> messageIds) {
+            List<String> existing = new ArrayList<>(messageIds);
+            existing.removeAll(deleted);
+            return Tasks.forResult(existing);
+        }
+    }
+
+    private static class FakeScheduler implements DeliveryAckCoalescer.Scheduler {
+        final List<Posted> pending = new ArrayList<>();
+        final List<Long> delays = new ArrayList<>();
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            pending.add(new Posted(task, delayMs));
+            delays.add(delayMs);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            pending.removeIf(posted -> posted.task == task);
+        }
+
+        // Runs what was posted without a delay
+        void runReady() {
+            List<Posted> ready = new ArrayList<>();
+            for (Posted posted : pending) {
+                if (posted.delayMs == 0) ready.add(posted);
+            }
+            pending.removeAll(ready);
+            for (Posted posted : ready) {
+                posted.task.run();
+            }
+        }
+
+        // Runs everything, including whatever the tasks post
+        void runAll() {
+            while (!pending.isEmpty()) {
+                pending.remove(0).task.run();
+            }
+        }
+    }
+
+    private static class Posted {
+        final Runnable task;
+        final long delayMs;
+
+        Posted(Runnable task, long delayMs) {
+            this.task = task;
+            this.delayMs = delayMs;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.avnishgamedev.moodchat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InternTableTest {
+    @Test
+    public void intern_roundTrips() {
+        InternTable table = new InternTable(8);
+        int alice = table.intern("alice");
+        int bob = table.intern("bob");
+
+        assertNotEquals(alice, bob);
+        assertEquals("alice", table.get(alice));
+        assertEquals("bob", table.get(bob));
+    }
+
+    @Test
+    public void intern_returnsSameIndexForEqualStrings() {
+        InternTable table = new InternTable(8);
+        int first = table.intern("alice");
+        int second = table.intern(new String("alice"));
+
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void seed_takesFirstIndices() {
+        InternTable table = new InternTable(8, "sent", "delivered", "read");
+
+        assertEquals(0, table.intern("sent"));
+        assertEquals(1, table.intern("delivered"));
+        assertEquals(2, table.intern("read"));
+    }
+
+    @Test
+    public void null_isNeverStored() {
+        InternTable table = new InternTable(1);
+
+        assertEquals(-1, table.intern(null));
+        assertNull(table.get(-1));
+        assertEquals(0, table.intern("alice"));
+    }
+
+    @Test
+    public void full_returnsFullAndKeepsExistingEntries() {
+        InternTable table = new InternTable(2);
+        int alice = table.intern("alice");
+        int bob = table.intern("bob");
+
+        assertEquals(InternTable.FULL, table.intern("carol"));
+        assertEquals(alice, table.intern("alice"));
+        assertEquals("bob", table.get(bob));
+    }
+}
@@ -0,0 +1,171 @@
+package com.avnishgamedev.moodchat;
+
+import com.google.firebase.Timestamp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MessageListTest {
+    @Test
+    public void append_indexesPositions() {
+        MessageList list = listOf(0, 3);
+
+        assertEquals(3, list.size());
+        assertEquals(0, list.positionOf("m0"));
+        assertEquals(2, list.positionOf("m2"));
+        assertEquals(-1, list.positionOf("missing"));
+    }
+
+    @Test
+    public void prependAll_shiftsExistingPositions() {
+        MessageList list = listOf(2, 4);
+        list.prependAll(Arrays.asList(message(0), message(1)));
+
+        assertEquals(4, list.size());
+        assertEquals(0, list.positionOf("m0"));
+        assertEquals(1, list.positionOf("m1"));
+        assertEquals(2, list.positionOf("m2"));
+        assertEquals(3, list.positionOf("m3"));
+    }
+
+    @Test
+    public void trimFront_dropsOldestAndShiftsTheRest() {
+        MessageList list = listOf(0, 5);
+        list.trimFront(2);
+
+        assertEquals(3, list.size());
+        assertFalse(list.containsId("m0"));
+        assertFalse(list.containsId("m1"));
+        assertEquals(0, list.positionOf("m2"));
+        assertEquals(2, list.positionOf("m4"));
+        assertEquals("m2", list.get(0).getId());
+    }
+
+    @Test
+    public void trimFront_afterRemoveKeepsStalePositionsCorrect() {
+        MessageList list = listOf(0, 6);
+        list.removeById("m3");
+        list.trimFront(2);
+
+        assertEquals(0, list.positionOf("m2"));
+        assertEquals(1, list.positionOf("m4"));
+        assertEquals(2, list.positionOf("m5"));
+    }
+
+    @Test
+    public void trimBack_dropsNewest() {
+        MessageList list = listOf(0, 4);
+        list.trimBack(2);
+
+        assertEquals(2, list.size());
+        assertFalse(list.containsId("m3"));
+        assertEquals(1, list.positionOf("m1"));
+        assertEquals(2, list.append(message(9)));
+    }
+
+    @Test
+    public void removeById_reindexesLaterPositions() {
+        MessageList list = listOf(0, 4);
+
+        assertEquals(1, list.removeById("m1"));
+        assertEquals(-1, list.removeById("m1"));
+        assertEquals(0, list.positionOf("m0"));
+        assertEquals(1, list.positionOf("m2"));
+        assertEquals(2, list.positionOf("m3"));
+    }
+
+    @Test
+    public void replace_keepsPosition() {
+        MessageList list = listOf(0, 3);
+        Message edited = message(1);
+        edited.setMessage("edited");
+
+        assertEquals(1, list.replace(edited));
+        assertEquals("edited", list.get(1).getMessage());
+        assertEquals(-1, list.replace(message(7)));
+    }
+
+    @Test
+    public void snapshot_isNotAffectedByLaterEdits() {
+        MessageList list = listOf(0, 2);
+        List<Message> snapshot = list.snapshot();
+        list.append(message(2));
+        list.removeById("m0");
+
+        assertEquals(2, snapshot.size());
+        assertEquals("m0", snapshot.get(0).getId());
+    }
+
+    @Test
+    public void randomEdits_matchPlainList() {
+        Random random = new Random(42);
+        MessageList list = new MessageList();
+        List<Message> expected = new ArrayList<>();
+        int next = 1000;
+        int first = 999;
+
+        for (int step = 0; step < 2000; step++) {
+            switch (random.nextInt(5)) {
+                case 0:
+                    Message appended = message(next++);
+                    list.append(appended);
+                    expected.add(appended);
+                    break;
+                case 1:
+                    List<Message> older = new ArrayList<>();
+                    int count = 1 + random.nextInt(3);
+                    for (int i = count - 1; i >= 0; i--) {
+                        older.add(message(first - i));
+                    }
+                    first -= count;
+                    list.prependAll(older);
+                    expected.addAll(0, older);
+                    break;
+                case 2:
+                    if (expected.isEmpty()) break;
+                    int trimmed = 1 + random.nextInt(Math.min(3, expected.size()));
+                    list.trimFront(trimmed);
+                    expected.subList(0, trimmed).clear();
+                    break;
+                case 3:
+                    if (expected.isEmpty()) break;
+                    Message removed = expected.remove(random.nextInt(expected.size()));
+                    list.removeById(removed.getId());
+                    break;
+                case 4:
+                    if (expected.isEmpty()) break;
+                    int dropped = 1 + random.nextInt(Math.min(3, expected.size()));
+                    list.trimBack(dropped);
+                    expected.subList(expected.size() - dropped, expected.size()).clear();
+                    break;
+            }
+
+            assertEquals(expected, list);
+            if (!expected.isEmpty()) {
+                int probe = random.nextInt(expected.size());
+                assertEquals(probe, list.positionOf(expected.get(probe).getId()));
+            }
+        }
+    }
+
+    // Helpers
+    private static MessageList listOf(int from, int to) {
+        MessageList list = new MessageList();
+        for (int i = from; i < to; i++) {
+            list.append(message(i));
+        }
+        return list;
+    }
+
+    private static Message message(int n) {
+        Message message = new Message("text " + n, "alice", "Alice", new Timestamp(1_700_000_000L + n, 0), "sent");
+        message.setId("m" + n);
+        return message;
+    }
+}
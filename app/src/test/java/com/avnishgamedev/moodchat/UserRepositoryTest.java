@@ -0,0 +1,202 @@
+package com.avnishgamedev.moodchat;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class UserRepositoryTest {
+    private final FakeFetcher fetcher = new FakeFetcher();
+    private final QueueExecutor main = new QueueExecutor();
+    private long now = 1_000;
+    private final UserRepository repository = new UserRepository(fetcher, main, () -> now);
+
+    @Test
+    public void get_missQueriesOnceAndCaches() {
+        Task<User> first = repository.get("alice");
+        main.runAll();
+        assertEquals(1, fetcher.calls.size());
+        fetcher.complete(0, user("alice"));
+        main.runAll();
+
+        assertEquals("alice", first.getResult().getUsername());
+        Task<User> second = repository.get("alice");
+        assertTrue(second.isComplete());
+        assertSame(first.getResult(), second.getResult());
+        assertEquals(1, fetcher.calls.size());
+    }
+
+    @Test
+    public void get_sharesInFlightRequests() {
+        Task<User> first = repository.get("alice");
+        Task<User> second = repository.get("alice");
+        main.runAll();
+
+        assertSame(first, second);
+        assertEquals(1, fetcher.calls.size());
+        assertEquals(Collections.singletonList("alice"), fetcher.calls.get(0));
+    }
+
+    @Test
+    public void missesInOnePass_areBatchedIntoChunkedQueries() {
+        List<Task<User>> requested = new ArrayList<>();
+        for (int i = 0; i < 65; i++) {
+            requested.add(repository.get("user" + i));
+        }
+        assertTrue(fetcher.calls.isEmpty());
+        main.runAll();
+
+        assertEquals(3, fetcher.calls.size());
+        assertEquals(ConversationHelpers.MAX_IN_VALUES, fetcher.calls.get(0).size());
+        assertEquals(ConversationHelpers.MAX_IN_VALUES, fetcher.calls.get(1).size());
+        assertEquals(5, fetcher.calls.get(2).size());
+
+        for (int call = 0; call < fetcher.calls.size(); call++) {
+            List<User> found = new ArrayList<>();
+            for (String username : fetcher.calls.get(call)) {
+                found.add(user(username));
+            }
+            fetcher.complete(call, found.toArray(new User[0]));
+        }
+        main.runAll();
+        for (int i = 0; i < requested.size(); i++) {
+            assertEquals("user" + i, requested.get(i).getResult().getUsername());
+        }
+    }
+
+    @Test
+    public void get_missingUserFailsWithUserNotFound() {
+        Task<User> missing = repository.get("ghost");
+        main.runAll();
+        fetcher.complete(0);
+        main.runAll();
+
+        assertFalse(missing.isSuccessful());
+        assertTrue(missing.getException() instanceof ConversationHelpers.UserNotFoundException);
+    }
+
+    @Test
+    public void failedQuery_failsWaitersAndAllowsRetry() {
+        Task<User> failed = repository.get("alice");
+        main.runAll();
+        Exception error = new Exception("offline");
+        fetcher.fail(0, error);
+        main.runAll();
+
+        assertSame(error, failed.getException());
+        repository.get("alice");
+        main.runAll();
+        assertEquals(2, fetcher.calls.size());
+    }
+
+    @Test
+    public void staleEntry_isServedAndRefreshedInBackground() {
+        repository.put(user("alice"));
+        now += UserRepository.TTL_MS + 1;
+
+        User cached = repository.getCached("alice");
+        assertEquals("alice", cached.getUsername());
+        main.runAll();
+        assertEquals(1, fetcher.calls.size());
+
+        User refreshed = user("alice");
+        refreshed.setName("Alice Updated");
+        fetcher.complete(0, refreshed);
+        main.runAll();
+        assertEquals("Alice Updated", repository.getCached("alice").getName());
+    }
+
+    @Test
+    public void get_queriesOnceTheEntryExpires() {
+        repository.put(user("alice"));
+        now += UserRepository.TTL_MS;
+        assertTrue(repository.get("alice").isComplete());
+
+        now += 1;
+        assertFalse(repository.get("alice").isComplete());
+        main.runAll();
+        assertEquals(1, fetcher.calls.size());
+    }
+
+    @Test
+    public void cache_evictsLeastRecentlyUsed() {
+        for (int i = 0; i < UserRepository.MAX_USERS; i++) {
+            repository.put(user("user" + i));
+        }
+        // Touching the oldest entry keeps it over the next one
+        assertNotNull(repository.getCached("user0"));
+        repository.put(user("extra"));
+
+        assertNotNull(repository.getCached("user0"));
+        assertNull(repository.getCached("user1"));
+    }
+
+    @Test
+    public void clear_dropsCacheAndFailsQueuedRequests() {
+        repository.put(user("alice"));
+        Task<User> queued = repository.get("bob");
+        repository.clear();
+
+        assertNull(repository.getCached("alice"));
+        assertTrue(queued.isComplete());
+        assertFalse(queued.isSuccessful());
+
+        // A request after clear() starts a fresh query instead of joining the failed one
+        Task<User> again = repository.get("bob");
+        assertNotSame(queued, again);
+        main.runAll();
+        assertEquals(Collections.singletonList("bob"), fetcher.calls.get(0));
+    }
+
+    // Helpers
+    private static User user(String username) {
+        User user = new User();
+        user.setUsername(username);
+        user.setName(username);
+        return user;
+    }
+
+    private static class FakeFetcher implements UserRepository.Fetcher {
+        final List<List<String>> calls = new ArrayList<>();
+        final List<TaskCompletionSource<List<User>>> results = new ArrayList<>();
+
+        @Override
+        public Task<List<User>> fetch(List<String> usernames) {
+            calls.add(new ArrayList<>(usernames));
+            TaskCompletionSource<List<User>> result = new TaskCompletionSource<>();
+            results.add(result);
+            return result.getTask();
+        }
+
+        void complete(int call, User... users) {
+            results.get(call).setResult(Arrays.asList(users));
+        }
+
+        void fail(int call, Exception e) {
+            results.get(call).setException(e);
+        }
+    }
+
+    private static class QueueExecutor implements Executor {
+        private final List<Runnable> queue = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            queue.add(command);
+        }
+
+        void runAll() {
+            while (!queue.isEmpty()) {
+                queue.remove(0).run();
+            }
+        }
+    }
+}